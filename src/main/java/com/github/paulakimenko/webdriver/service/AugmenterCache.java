@@ -0,0 +1,54 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.Augmenter;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared Augmenter, which remembers capability sets without augmentations.
+ * <p>
+ * Augmenter registers its providers on construction, so single instance is used.
+ * Augmentation depends only on names of enabled (not null, not false) capabilities, so sessions with
+ * capability set, which has produced no augmentation once, skip augmentation and reflective copying of fields.
+ * Proxy classes of augmented drivers are cached by cglib per driver class and interfaces set.
+ */
+final class AugmenterCache {
+    private static final Augmenter augmenter = new Augmenter();
+    private static final ConcurrentMap<Set<String>, Boolean> augmentations = new ConcurrentHashMap<>();
+
+    private AugmenterCache() {}
+
+    /**
+     * Augment Remote WebDriver with interfaces of its capabilities.
+     * @param driver Remote WebDriver
+     * @return augmented WebDriver, or given driver if there is nothing to augment
+     */
+    static WebDriver augment(RemoteWebDriver driver) {
+        Set<String> enabledCapabilities = getEnabledCapabilities(driver.getCapabilities());
+        if (Boolean.FALSE.equals(augmentations.get(enabledCapabilities)))
+            return driver;
+
+        WebDriver augmented = augmenter.augment(driver);
+        augmentations.putIfAbsent(enabledCapabilities, augmented != driver);
+        return augmented;
+    }
+
+    private static Set<String> getEnabledCapabilities(Capabilities capabilities) {
+        Set<String> enabledCapabilities = new TreeSet<>();
+        if (capabilities == null)
+            return enabledCapabilities;
+        for (Map.Entry<String, ?> entry : capabilities.asMap().entrySet()) {
+            Object value = entry.getValue();
+            if (value != null && !Boolean.FALSE.equals(value))
+                enabledCapabilities.add(entry.getKey());
+        }
+        return enabledCapabilities;
+    }
+}
@@ -0,0 +1,908 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.Alert;
+import org.openqa.selenium.By;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.SearchContext;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.security.Credentials;
+import org.openqa.selenium.interactions.HasInputDevices;
+import org.openqa.selenium.interactions.Keyboard;
+import org.openqa.selenium.interactions.Mouse;
+import org.openqa.selenium.interactions.internal.Coordinates;
+import org.openqa.selenium.internal.Locatable;
+import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.internal.WrapsElement;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in WebDriver wrapper, which memoizes found elements per document.
+ * <p>
+ * Install it with WDService.wrapWith(CachingWebDriver.class).
+ * <p>
+ * Cache is validated by DOM token of current document: document id and counter of DOM mutations, which are
+ * observed with MutationObserver. Token is fetched lazily, once per batch of read-only commands: after it has been
+ * checked, cache hits are served without calls to browser until next command, which could mutate DOM (element
+ * click, submit, typing or clearing, script execution, keyboard and mouse input, alert handling). On cache miss,
+ * locators, which could be expressed as CSS selector (id, name, class name, tag name, CSS selector), are looked up
+ * by the same script call, which fetches token; other locators and lookups without results (which should honour
+ * implicit wait) are sent to driver as usual.
+ * <p>
+ * Cache is invalidated when token changes, on navigation and on switching of window or frame.
+ * Mutations made by page itself (timers, network responses) are noticed on next token check.
+ * Cached element, which has become stale, is looked up again and failed command is retried once.
+ * If driver can't execute scripts, or browser doesn't support MutationObserver (e.g. HtmlUnit),
+ * elements are not cached and lookups are passed to driver without extra calls until next navigation.
+ */
+public class CachingWebDriver implements WebDriver, WrapsDriver, JavascriptExecutor, TakesScreenshot,
+        HasInputDevices {
+    /**
+     * Returns [token] or [token, found elements...] (if CSS selector and optional parent element are given),
+     * or null if DOM mutations can't be observed.
+     */
+    static final String DOM_TOKEN_SCRIPT = "var w = window, state = w.__webdriverServiceDom;"
+            + "if (!state) {"
+            + "  if (!w.MutationObserver) return null;"
+            + "  state = w.__webdriverServiceDom = {id: Math.random().toString(36).substring(2), count: 0};"
+            + "  new w.MutationObserver(function () { state.count++; }).observe(document,"
+            + "      {childList: true, subtree: true, attributes: true, characterData: true});"
+            + "}"
+            + "var result = [state.id + ':' + state.count];"
+            + "if (arguments.length > 0) {"
+            + "  var found = (arguments.length > 1 ? arguments[1] : document).querySelectorAll(arguments[0]);"
+            + "  for (var i = 0; i < found.length; i++) result.push(found[i]);"
+            + "}"
+            + "return result;";
+
+    private final WebDriver driver;
+    private final ConcurrentMap<Key, Object> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong staleRetries = new AtomicLong();
+    private volatile String domToken;
+    private volatile boolean domTokenChecked;
+    private volatile boolean observable = true;
+
+    /**
+     * Build caching wrapper of given driver.
+     * @param driver WebDriver to wrap
+     */
+    public CachingWebDriver(WebDriver driver) {
+        this.driver = driver;
+    }
+
+    @Override
+    public WebDriver getWrappedDriver() {
+        return driver;
+    }
+
+    @Override
+    public void get(String url) {
+        changeDocument();
+        driver.get(url);
+    }
+
+    @Override
+    public String getCurrentUrl() {
+        return driver.getCurrentUrl();
+    }
+
+    @Override
+    public String getTitle() {
+        return driver.getTitle();
+    }
+
+    @Override
+    public List<WebElement> findElements(By by) {
+        return findElements(null, by);
+    }
+
+    @Override
+    public WebElement findElement(By by) {
+        return findElement(null, by);
+    }
+
+    @Override
+    public String getPageSource() {
+        return driver.getPageSource();
+    }
+
+    @Override
+    public void close() {
+        changeDocument();
+        driver.close();
+    }
+
+    @Override
+    public void quit() {
+        invalidate();
+        driver.quit();
+    }
+
+    @Override
+    public Set<String> getWindowHandles() {
+        return driver.getWindowHandles();
+    }
+
+    @Override
+    public String getWindowHandle() {
+        return driver.getWindowHandle();
+    }
+
+    @Override
+    public TargetLocator switchTo() {
+        return new CachingTargetLocator(driver.switchTo());
+    }
+
+    @Override
+    public Navigation navigate() {
+        return new CachingNavigation(driver.navigate());
+    }
+
+    @Override
+    public Options manage() {
+        return driver.manage();
+    }
+
+    @Override
+    public Object executeScript(String script, Object... args) {
+        changeDom();
+        return getJsExecutor().executeScript(script, unwrapArgs(args));
+    }
+
+    @Override
+    public Object executeAsyncScript(String script, Object... args) {
+        changeDom();
+        return getJsExecutor().executeAsyncScript(script, unwrapArgs(args));
+    }
+
+    @Override
+    public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException {
+        if (driver instanceof TakesScreenshot)
+            return ((TakesScreenshot) driver).getScreenshotAs(target);
+        throw new UnsupportedOperationException("Underlying driver instance does not support taking screenshots");
+    }
+
+    @Override
+    public Keyboard getKeyboard() {
+        return new CachingKeyboard(getInputDevices().getKeyboard());
+    }
+
+    @Override
+    public Mouse getMouse() {
+        return new CachingMouse(getInputDevices().getMouse());
+    }
+
+    /**
+     * Drop all cached elements.
+     */
+    public void invalidate() {
+        domToken = null;
+        domTokenChecked = false;
+        if (!cache.isEmpty()) {
+            cache.clear();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get number of lookups, which have been served from cache.
+     * @return cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get number of cache hits, which have been served without DOM token check, i.e. without calls to browser.
+     * @return cache hits without round trip
+     */
+    public long getLocalHits() {
+        return localHits.get();
+    }
+
+    /**
+     * Get number of lookups, which have been sent to browser.
+     * @return cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get number of cache invalidations (navigation, window/frame switch or DOM mutations).
+     * @return cache invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Get number of commands, which have been retried with element looked up again after staleness.
+     * @return stale element retries
+     */
+    public long getStaleRetries() {
+        return staleRetries.get();
+    }
+
+    /**
+     * Get ratio of cache hits to all lookups.
+     * @return hit rate from 0 to 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingWebDriver(" + driver + ") hits: " + getHits() + " (local: " + getLocalHits() + ")"
+                + ", misses: " + getMisses()
+                + ", invalidations: " + getInvalidations() + ", stale retries: " + getStaleRetries();
+    }
+
+    /*
+    Privates
+     */
+
+    private WebElement findElement(CachingWebElement parent, By by) {
+        Key key = new Key(parent, by);
+        Lookup lookup = lookup(parent, by);
+        if (lookup.cacheable) {
+            WebElement cached = (WebElement) cache.get(key);
+            if (cached != null) {
+                countHit(lookup);
+                return cached;
+            }
+        }
+
+        misses.incrementAndGet();
+        WebElement found = lookup.found.isEmpty() ? searchContext(parent).findElement(by) : lookup.found.get(0);
+        WebElement element = new CachingWebElement(found, parent, by, -1);
+        if (lookup.cacheable)
+            cache.put(key, element);
+        return element;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<WebElement> findElements(CachingWebElement parent, By by) {
+        Key key = new Key(parent, by);
+        Lookup lookup = lookup(parent, by);
+        if (lookup.cacheable) {
+            List<WebElement> cached = (List<WebElement>) cache.get(key);
+            if (cached != null) {
+                countHit(lookup);
+                return new ArrayList<>(cached);
+            }
+        }
+
+        misses.incrementAndGet();
+        List<WebElement> found = lookup.found.isEmpty() ? searchContext(parent).findElements(by) : lookup.found;
+        List<WebElement> elements = new ArrayList<>(found.size());
+        for (int i = 0; i < found.size(); i++)
+            elements.add(new CachingWebElement(found.get(i), parent, by, i));
+        if (lookup.cacheable)
+            cache.put(key, Collections.unmodifiableList(new ArrayList<>(elements)));
+        return elements;
+    }
+
+    private void countHit(Lookup lookup) {
+        hits.incrementAndGet();
+        if (lookup == Lookup.CHECKED)
+            localHits.incrementAndGet();
+    }
+
+    /**
+     * Fetch DOM token of current document (and elements found by CSS selector, if cache can't serve the lookup),
+     * invalidate cache if token has changed. Token isn't fetched for cached lookup, if it has been checked
+     * after last command, which could mutate DOM.
+     */
+    private Lookup lookup(CachingWebElement parent, By by) {
+        if (!observable || !(driver instanceof JavascriptExecutor))
+            return Lookup.NOT_CACHEABLE;
+
+        boolean cached = cache.containsKey(new Key(parent, by));
+        if (cached && domTokenChecked)
+            return Lookup.CHECKED;
+        String selector = cached ? null : toCssSelector(by);
+        Object result;
+        try {
+            JavascriptExecutor jsExecutor = (JavascriptExecutor) driver;
+            if (selector == null)
+                result = jsExecutor.executeScript(DOM_TOKEN_SCRIPT);
+            else if (parent == null)
+                result = jsExecutor.executeScript(DOM_TOKEN_SCRIPT, selector);
+            else
+                result = jsExecutor.executeScript(DOM_TOKEN_SCRIPT, selector, parent.getWrappedElement());
+        } catch (WebDriverException e) {
+            invalidate();
+            return Lookup.NOT_CACHEABLE;
+        }
+        if (!(result instanceof List) || ((List<?>) result).isEmpty()) {
+            // document can't be observed, it won't be asked again until navigation
+            observable = false;
+            invalidate();
+            return Lookup.NOT_CACHEABLE;
+        }
+
+        List<?> values = (List<?>) result;
+        String currentToken = String.valueOf(values.get(0));
+        if (!currentToken.equals(domToken)) {
+            invalidate();
+            domToken = currentToken;
+        }
+        domTokenChecked = true;
+        List<WebElement> found = new ArrayList<>(values.size() - 1);
+        for (Object value : values.subList(1, values.size())) {
+            if (value instanceof WebElement)
+                found.add((WebElement) value);
+        }
+        return new Lookup(true, found);
+    }
+
+    /**
+     * Drop cached elements, and check again whether DOM of next document could be observed.
+     */
+    private void changeDocument() {
+        invalidate();
+        observable = true;
+    }
+
+    /**
+     * Check DOM token again on next lookup, because command could mutate DOM.
+     */
+    private void changeDom() {
+        domTokenChecked = false;
+    }
+
+    private static String toCssSelector(By by) {
+        String value = by.toString();
+        value = value.substring(value.indexOf(": ") + 2);
+        if (by instanceof By.ByCssSelector)
+            return value;
+        if (by instanceof By.ByTagName)
+            return value;
+        if (by instanceof By.ById)
+            return "*[id=\"" + escapeCssString(value) + "\"]";
+        if (by instanceof By.ByName)
+            return "*[name=\"" + escapeCssString(value) + "\"]";
+        if (by instanceof By.ByClassName && !value.trim().isEmpty() && !value.trim().contains(" "))
+            return "*[class~=\"" + escapeCssString(value.trim()) + "\"]";
+        return null;
+    }
+
+    private static String escapeCssString(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private SearchContext searchContext(CachingWebElement parent) {
+        return parent == null ? driver : parent.getWrappedElement();
+    }
+
+    private JavascriptExecutor getJsExecutor() {
+        if (driver instanceof JavascriptExecutor)
+            return (JavascriptExecutor) driver;
+        throw new UnsupportedOperationException("Underlying driver instance does not support executing javascript");
+    }
+
+    private HasInputDevices getInputDevices() {
+        if (driver instanceof HasInputDevices)
+            return (HasInputDevices) driver;
+        throw new UnsupportedOperationException("Underlying driver instance does not support input devices");
+    }
+
+    private static Object[] unwrapArgs(Object[] args) {
+        if (args == null)
+            return null;
+        Object[] unwrapped = new Object[args.length];
+        for (int i = 0; i < args.length; i++)
+            unwrapped[i] = args[i] instanceof CachingWebElement
+                    ? ((CachingWebElement) args[i]).getWrappedElement() : args[i];
+        return unwrapped;
+    }
+
+    /**
+     * Result of DOM token fetch: could lookup be cached, and elements found by the same script call.
+     */
+    private static final class Lookup {
+        private static final Lookup NOT_CACHEABLE = new Lookup(false, Collections.<WebElement>emptyList());
+        private static final Lookup CHECKED = new Lookup(true, Collections.<WebElement>emptyList());
+
+        private final boolean cacheable;
+        private final List<WebElement> found;
+
+        Lookup(boolean cacheable, List<WebElement> found) {
+            this.cacheable = cacheable;
+            this.found = found;
+        }
+    }
+
+    /**
+     * Cache key: search context (driver or parent element) and locator.
+     */
+    private static final class Key {
+        private final CachingWebElement parent;
+        private final By by;
+
+        Key(CachingWebElement parent, By by) {
+            this.parent = parent;
+            this.by = by;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return parent == key.parent && by.equals(key.by);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(parent) + by.hashCode();
+        }
+    }
+
+    /**
+     * Element, which remembers how it has been found, so it could be looked up again when it becomes stale.
+     */
+    private final class CachingWebElement implements WebElement, WrapsElement, WrapsDriver, Locatable {
+        private final CachingWebElement parent;
+        private final By by;
+        private final int index;
+        private volatile WebElement element;
+
+        CachingWebElement(WebElement element, CachingWebElement parent, By by, int index) {
+            this.element = element;
+            this.parent = parent;
+            this.by = by;
+            this.index = index;
+        }
+
+        @Override
+        public WebElement getWrappedElement() {
+            return element;
+        }
+
+        @Override
+        public WebDriver getWrappedDriver() {
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public void click() {
+            changeDom();
+            try {
+                element.click();
+            } catch (StaleElementReferenceException e) {
+                refind(e).click();
+            }
+        }
+
+        @Override
+        public void submit() {
+            changeDom();
+            try {
+                element.submit();
+            } catch (StaleElementReferenceException e) {
+                refind(e).submit();
+            }
+        }
+
+        @Override
+        public void sendKeys(CharSequence... keysToSend) {
+            changeDom();
+            try {
+                element.sendKeys(keysToSend);
+            } catch (StaleElementReferenceException e) {
+                refind(e).sendKeys(keysToSend);
+            }
+        }
+
+        @Override
+        public void clear() {
+            changeDom();
+            try {
+                element.clear();
+            } catch (StaleElementReferenceException e) {
+                refind(e).clear();
+            }
+        }
+
+        @Override
+        public String getTagName() {
+            try {
+                return element.getTagName();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getTagName();
+            }
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            try {
+                return element.getAttribute(name);
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getAttribute(name);
+            }
+        }
+
+        @Override
+        public boolean isSelected() {
+            try {
+                return element.isSelected();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).isSelected();
+            }
+        }
+
+        @Override
+        public boolean isEnabled() {
+            try {
+                return element.isEnabled();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).isEnabled();
+            }
+        }
+
+        @Override
+        public String getText() {
+            try {
+                return element.getText();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getText();
+            }
+        }
+
+        @Override
+        public List<WebElement> findElements(By by) {
+            return CachingWebDriver.this.findElements(this, by);
+        }
+
+        @Override
+        public WebElement findElement(By by) {
+            return CachingWebDriver.this.findElement(this, by);
+        }
+
+        @Override
+        public boolean isDisplayed() {
+            try {
+                return element.isDisplayed();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).isDisplayed();
+            }
+        }
+
+        @Override
+        public Point getLocation() {
+            try {
+                return element.getLocation();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getLocation();
+            }
+        }
+
+        @Override
+        public Dimension getSize() {
+            try {
+                return element.getSize();
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getSize();
+            }
+        }
+
+        @Override
+        public String getCssValue(String propertyName) {
+            try {
+                return element.getCssValue(propertyName);
+            } catch (StaleElementReferenceException e) {
+                return refind(e).getCssValue(propertyName);
+            }
+        }
+
+        @Override
+        public Coordinates getCoordinates() {
+            if (element instanceof Locatable)
+                return ((Locatable) element).getCoordinates();
+            throw new UnsupportedOperationException("Underlying element instance does not support coordinates");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof CachingWebElement)
+                return element.equals(((CachingWebElement) o).element);
+            return element.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return element.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return element.toString();
+        }
+
+        /**
+         * Look up element again with the same search context and locator.
+         * <p>
+         * Original exception is thrown, if element is not found again.
+         */
+        private WebElement refind(StaleElementReferenceException cause) {
+            invalidate();
+            staleRetries.incrementAndGet();
+            try {
+                SearchContext context = parent == null ? driver : parent.refreshed();
+                if (index < 0) {
+                    element = context.findElement(by);
+                } else {
+                    List<WebElement> found = context.findElements(by);
+                    if (index >= found.size())
+                        throw cause;
+                    element = found.get(index);
+                }
+            } catch (WebDriverException e) {
+                throw cause;
+            }
+            return element;
+        }
+
+        private WebElement refreshed() {
+            try {
+                element.isEnabled();
+                return element;
+            } catch (StaleElementReferenceException e) {
+                return refind(e);
+            }
+        }
+    }
+
+    /**
+     * Navigation, which invalidates cache.
+     */
+    private final class CachingNavigation implements Navigation {
+        private final Navigation navigation;
+
+        CachingNavigation(Navigation navigation) {
+            this.navigation = navigation;
+        }
+
+        @Override
+        public void back() {
+            changeDocument();
+            navigation.back();
+        }
+
+        @Override
+        public void forward() {
+            changeDocument();
+            navigation.forward();
+        }
+
+        @Override
+        public void to(String url) {
+            changeDocument();
+            navigation.to(url);
+        }
+
+        @Override
+        public void to(URL url) {
+            changeDocument();
+            navigation.to(url);
+        }
+
+        @Override
+        public void refresh() {
+            changeDocument();
+            navigation.refresh();
+        }
+    }
+
+    /**
+     * Target locator, which invalidates cache, because every switch changes current document.
+     */
+    private final class CachingTargetLocator implements TargetLocator {
+        private final TargetLocator targetLocator;
+
+        CachingTargetLocator(TargetLocator targetLocator) {
+            this.targetLocator = targetLocator;
+        }
+
+        @Override
+        public WebDriver frame(int index) {
+            changeDocument();
+            targetLocator.frame(index);
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebDriver frame(String nameOrId) {
+            changeDocument();
+            targetLocator.frame(nameOrId);
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebDriver frame(WebElement frameElement) {
+            changeDocument();
+            if (frameElement instanceof CachingWebElement)
+                frameElement = ((CachingWebElement) frameElement).getWrappedElement();
+            targetLocator.frame(frameElement);
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebDriver parentFrame() {
+            changeDocument();
+            targetLocator.parentFrame();
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebDriver window(String nameOrHandle) {
+            changeDocument();
+            targetLocator.window(nameOrHandle);
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebDriver defaultContent() {
+            changeDocument();
+            targetLocator.defaultContent();
+            return CachingWebDriver.this;
+        }
+
+        @Override
+        public WebElement activeElement() {
+            return targetLocator.activeElement();
+        }
+
+        @Override
+        public Alert alert() {
+            changeDom();
+            return new CachingAlert(targetLocator.alert());
+        }
+    }
+
+    /**
+     * Alert, which marks DOM as changed, because closing of alert resumes page scripts.
+     */
+    private final class CachingAlert implements Alert {
+        private final Alert alert;
+
+        CachingAlert(Alert alert) {
+            this.alert = alert;
+        }
+
+        @Override
+        public void dismiss() {
+            changeDom();
+            alert.dismiss();
+        }
+
+        @Override
+        public void accept() {
+            changeDom();
+            alert.accept();
+        }
+
+        @Override
+        public String getText() {
+            return alert.getText();
+        }
+
+        @Override
+        public void sendKeys(String keysToSend) {
+            alert.sendKeys(keysToSend);
+        }
+
+        @Override
+        public void authenticateUsing(Credentials credentials) {
+            changeDom();
+            alert.authenticateUsing(credentials);
+        }
+    }
+
+    /**
+     * Keyboard, which marks DOM as changed on every input.
+     */
+    private final class CachingKeyboard implements Keyboard {
+        private final Keyboard keyboard;
+
+        CachingKeyboard(Keyboard keyboard) {
+            this.keyboard = keyboard;
+        }
+
+        @Override
+        public void sendKeys(CharSequence... keysToSend) {
+            changeDom();
+            keyboard.sendKeys(keysToSend);
+        }
+
+        @Override
+        public void pressKey(CharSequence keyToPress) {
+            changeDom();
+            keyboard.pressKey(keyToPress);
+        }
+
+        @Override
+        public void releaseKey(CharSequence keyToRelease) {
+            changeDom();
+            keyboard.releaseKey(keyToRelease);
+        }
+    }
+
+    /**
+     * Mouse, which marks DOM as changed on every input.
+     */
+    private final class CachingMouse implements Mouse {
+        private final Mouse mouse;
+
+        CachingMouse(Mouse mouse) {
+            this.mouse = mouse;
+        }
+
+        @Override
+        public void click(Coordinates where) {
+            changeDom();
+            mouse.click(where);
+        }
+
+        @Override
+        public void doubleClick(Coordinates where) {
+            changeDom();
+            mouse.doubleClick(where);
+        }
+
+        @Override
+        public void mouseDown(Coordinates where) {
+            changeDom();
+            mouse.mouseDown(where);
+        }
+
+        @Override
+        public void mouseUp(Coordinates where) {
+            changeDom();
+            mouse.mouseUp(where);
+        }
+
+        @Override
+        public void mouseMove(Coordinates where) {
+            changeDom();
+            mouse.mouseMove(where);
+        }
+
+        @Override
+        public void mouseMove(Coordinates where, long xOffset, long yOffset) {
+            changeDom();
+            mouse.mouseMove(where, xOffset, yOffset);
+        }
+
+        @Override
+        public void contextClick(Coordinates where) {
+            changeDom();
+            mouse.contextClick(where);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.base.Function;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.internal.WrapsElement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in recorder of WebDriver commands, which is installed with WDService.wrapWith(Function).
+ * <p>
+ * Every command of driver and of objects returned by it (elements, navigation, options, etc.)
+ * is appended to compact binary trace: command, arguments hash, timing and result size.
+ * Each wrapped driver (session) gets its own memory-mapped, append-only trace file in given directory.
+ * Space for records is reserved with atomic counter, so recording threads don't lock.
+ * Trace file is preallocated (sparse) with given capacity and ends with zero record type.
+ * Records, which don't fit into trace capacity, are dropped. When trace is completed, file is unmapped
+ * and truncated to recorded size.
+ * <p>
+ * Dictionary record of command is written before the command is recorded for the first time, so trace, which
+ * has been cut at any record, is still readable. Traces of drivers, which haven't quit, are completed
+ * on JVM shutdown.
+ * <p>
+ * Trace could be replayed with com.github.paulakimenko.webdriver.service.CommandTraceReplay.
+ */
+public class CommandTraceRecorder implements Function<WebDriver, WrapsDriver> {
+    static final int MAGIC = 0x57445452;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final byte DICTIONARY_RECORD = 1;
+    static final byte COMMAND_RECORD = 2;
+    static final int COMMAND_RECORD_SIZE = 30;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_FAILED = 1;
+    static final String FILE_EXTENSION = ".wdtrace";
+
+    private static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+    private static final int NOT_RECORDED = -1;
+    private static final Set<Trace> openTraces = Collections.newSetFromMap(new ConcurrentHashMap<Trace, Boolean>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (Trace trace : openTraces) {
+                    try {
+                        trace.close();
+                    } catch (RuntimeException ignored) {
+                        // JVM is exiting, other traces are still completed
+                    }
+                }
+            }
+        }, "webdriver-trace-shutdown"));
+    }
+
+    private final File directory;
+    private final int capacity;
+    private final List<File> traceFiles = new ArrayList<>();
+
+    /**
+     * Build recorder, which writes traces of 16 MB into given directory.
+     * @param directory trace files directory
+     */
+    public CommandTraceRecorder(File directory) {
+        this(directory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Build recorder.
+     * @param directory trace files directory
+     * @param capacity maximum size of one trace file in bytes
+     */
+    public CommandTraceRecorder(File directory, int capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Wrap driver with recording proxy, which writes into new trace file.
+     * <p>
+     * Trace file is completed when driver quits.
+     * @param driver WebDriver to record
+     * @return recording WebDriver
+     */
+    @Override
+    public WrapsDriver apply(WebDriver driver) {
+        File traceFile = new File(directory, "trace-" + UUID.randomUUID() + FILE_EXTENSION);
+        Trace trace;
+        try {
+            trace = new Trace(traceFile, capacity);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't create trace file " + traceFile, e);
+        }
+        synchronized (traceFiles) {
+            traceFiles.add(traceFile);
+        }
+        return (WrapsDriver) trace.wrap(driver, WebDriver.class);
+    }
+
+    /**
+     * Get files of traces, which have been created by this recorder.
+     * @return trace files
+     */
+    public List<File> getTraceFiles() {
+        synchronized (traceFiles) {
+            return new ArrayList<>(traceFiles);
+        }
+    }
+
+    /**
+     * Get signature of method, which is used as command name in trace.
+     * @param method WebDriver API method
+     * @return signature, e.g. "org.openqa.selenium.WebDriver#get(java.lang.String)"
+     */
+    static String getSignature(Method method) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method.getDeclaringClass().getName()).append('#').append(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').toString();
+    }
+
+    /*
+    Privates
+     */
+
+    /**
+     * Memory-mapped trace file of one session.
+     */
+    private static final class Trace {
+        private final File traceFile;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong position = new AtomicLong(HEADER_SIZE);
+        private final ConcurrentMap<Method, Integer> commandIds = new ConcurrentHashMap<>();
+        private int nextCommandId;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicInteger writers = new AtomicInteger();
+
+        Trace(File traceFile, int capacity) throws IOException {
+            File parent = traceFile.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("Can't create directory " + parent);
+
+            this.traceFile = traceFile;
+            this.capacity = capacity;
+            this.file = new RandomAccessFile(traceFile, "rw");
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putLong(8, System.currentTimeMillis());
+            openTraces.add(this);
+        }
+
+        Object wrap(Object target, Class<?> mainInterface) {
+            Set<Class<?>> interfaces = new LinkedHashSet<>();
+            collectInterfaces(target.getClass(), interfaces);
+            interfaces.add(mainInterface);
+            if (target instanceof WebDriver)
+                interfaces.add(WrapsDriver.class);
+            if (target instanceof WebElement)
+                interfaces.add(WrapsElement.class);
+            return Proxy.newProxyInstance(CommandTraceRecorder.class.getClassLoader(),
+                    interfaces.toArray(new Class<?>[interfaces.size()]), new Handler(this, target));
+        }
+
+        void record(Method method, Object[] args, long start, long duration, Object result, boolean failed) {
+            // close() waits for writers, so buffer isn't unmapped while record is written
+            writers.incrementAndGet();
+            try {
+                if (!closed.get())
+                    write(method, args, start, duration, result, failed);
+            } finally {
+                writers.decrementAndGet();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            openTraces.remove(this);
+            while (writers.get() > 0)
+                Thread.yield();
+            try {
+                buffer.force();
+                unmap(buffer);
+                file.setLength(Math.min(position.get(), capacity));
+                file.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Can't complete trace file " + traceFile, e);
+            }
+        }
+
+        private void write(Method method, Object[] args, long start, long duration, Object result, boolean failed) {
+            int commandId = getCommandId(method);
+            if (commandId == NOT_RECORDED)
+                return;
+            long recordPosition = reserve(COMMAND_RECORD_SIZE);
+            if (recordPosition < 0)
+                return;
+
+            int index = (int) recordPosition;
+            buffer.putInt(index + 1, commandId);
+            buffer.putInt(index + 5, args == null ? 0 : Arrays.deepHashCode(args));
+            buffer.putLong(index + 9, start - startNanos);
+            buffer.putLong(index + 17, duration);
+            buffer.putInt(index + 25, getResultSize(result));
+            buffer.put(index + 29, failed ? STATUS_FAILED : STATUS_OK);
+            buffer.put(index, COMMAND_RECORD);
+        }
+
+        /**
+         * Get id of command. Id is published only after its dictionary record has been written,
+         * so every command record follows dictionary record of its command.
+         * @return command id, or NOT_RECORDED if dictionary record doesn't fit into trace
+         */
+        private int getCommandId(Method method) {
+            Integer commandId = commandIds.get(method);
+            if (commandId != null)
+                return commandId;
+
+            synchronized (commandIds) {
+                commandId = commandIds.get(method);
+                if (commandId != null)
+                    return commandId;
+
+                int newId = nextCommandId++;
+                byte[] signature = getSignature(method).getBytes(StandardCharsets.UTF_8);
+                long recordPosition = reserve(7 + signature.length);
+                if (recordPosition >= 0) {
+                    int index = (int) recordPosition;
+                    buffer.putInt(index + 1, newId);
+                    buffer.putShort(index + 5, (short) signature.length);
+                    for (int i = 0; i < signature.length; i++)
+                        buffer.put(index + 7 + i, signature[i]);
+                    buffer.put(index, DICTIONARY_RECORD);
+                } else {
+                    newId = NOT_RECORDED;
+                }
+                commandIds.put(method, newId);
+                return newId;
+            }
+        }
+
+        private long reserve(int size) {
+            long recordPosition = position.getAndAdd(size);
+            if (recordPosition + size > capacity) {
+                return -1;
+            }
+            return recordPosition;
+        }
+
+        /**
+         * Release mapping right away instead of on garbage collection of buffer.
+         * Buffer stays mapped until collection, if JVM doesn't expose its cleaner.
+         */
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                // Java 9+
+                Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+                Field unsafeField = unsafeType.getDeclaredField("theUnsafe");
+                unsafeField.setAccessible(true);
+                unsafeType.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafeField.get(null), buffer);
+                return;
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // Java 7 and 8
+            }
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // buffer is unmapped on garbage collection
+            }
+        }
+
+        private static int getResultSize(Object result) {
+            if (result == null)
+                return 0;
+            if (result instanceof String)
+                return ((String) result).length();
+            if (result instanceof byte[])
+                return ((byte[]) result).length;
+            if (result instanceof Collection)
+                return ((Collection<?>) result).size();
+            if (result instanceof Map)
+                return ((Map<?, ?>) result).size();
+            return 1;
+        }
+
+        private static void collectInterfaces(Class<?> type, Set<Class<?>> interfaces) {
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Class<?> implemented : current.getInterfaces()) {
+                    if (Modifier.isPublic(implemented.getModifiers()))
+                        interfaces.add(implemented);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recording invocation handler.
+     */
+    private static final class Handler implements InvocationHandler {
+        private static final Class<?>[] WRAPPED_RESULTS = {
+                WebDriver.class, WebElement.class, WebDriver.Navigation.class, WebDriver.Options.class,
+                WebDriver.Timeouts.class, WebDriver.Window.class, WebDriver.TargetLocator.class,
+                WebDriver.ImeHandler.class
+        };
+
+        private final Trace trace;
+        private final Object target;
+
+        Handler(Trace trace, Object target) {
+            this.trace = trace;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class)
+                return invokeObjectMethod(proxy, method, args);
+            if (method.getDeclaringClass() == WrapsDriver.class || method.getDeclaringClass() == WrapsElement.class)
+                return target;
+
+            Object[] targetArgs = unwrapArgs(args);
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(target, targetArgs);
+            } catch (InvocationTargetException e) {
+                trace.record(method, targetArgs, start, System.nanoTime() - start, null, true);
+                throw e.getCause();
+            }
+            trace.record(method, targetArgs, start, System.nanoTime() - start, result, false);
+
+            if ("quit".equals(method.getName()) && target instanceof WebDriver)
+                trace.close();
+            return wrapResult(method, result);
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0] || target.equals(unwrap(args[0]));
+                case "hashCode":
+                    return target.hashCode();
+                default:
+                    return method.invoke(target, args);
+            }
+        }
+
+        private Object wrapResult(Method method, Object result) {
+            if (result == null)
+                return null;
+            if (result instanceof List && method.getReturnType() == List.class) {
+                List<Object> wrapped = new ArrayList<>();
+                for (Object item : (List<?>) result)
+                    wrapped.add(item instanceof WebElement ? trace.wrap(item, WebElement.class) : item);
+                return wrapped;
+            }
+            for (Class<?> type : WRAPPED_RESULTS) {
+                if (method.getReturnType() == type)
+                    return trace.wrap(result, type);
+            }
+            return result;
+        }
+
+        private static Object[] unwrapArgs(Object[] args) {
+            if (args == null)
+                return null;
+            Object[] unwrapped = new Object[args.length];
+            for (int i = 0; i < args.length; i++)
+                unwrapped[i] = unwrap(args[i]);
+            return unwrapped;
+        }
+
+        private static Object unwrap(Object arg) {
+            if (arg != null && Proxy.isProxyClass(arg.getClass())
+                    && Proxy.getInvocationHandler(arg) instanceof Handler)
+                return ((Handler) Proxy.getInvocationHandler(arg)).target;
+            if (arg instanceof Object[])
+                return unwrapArgs((Object[]) arg);
+            if (arg instanceof List) {
+                List<Object> unwrapped = new ArrayList<>();
+                for (Object item : (List<?>) arg)
+                    unwrapped.add(unwrap(item));
+                return unwrapped;
+            }
+            return arg;
+        }
+    }
+}
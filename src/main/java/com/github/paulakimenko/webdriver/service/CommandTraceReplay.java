@@ -0,0 +1,452 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Offline replay of traces, which have been recorded by CommandTraceRecorder.
+ * <p>
+ * Commands are re-issued in recorded order with placeholder arguments (arguments themselves are not recorded),
+ * against HtmlUnitDriver, stub driver, or any driver wrapped with wrappers under test.
+ * Used to benchmark service and wrappers overhead deterministically.
+ * quit() and close() commands are not replayed.
+ * <p>
+ * Usage: CommandTraceReplay [trace file] [stub|htmlunit] [iterations]
+ */
+public class CommandTraceReplay {
+    private final List<Command> commands;
+
+    /**
+     * Read trace file.
+     * @param traceFile trace file
+     * @throws IOException if trace can't be read
+     */
+    public CommandTraceReplay(File traceFile) throws IOException {
+        this.commands = read(traceFile);
+    }
+
+    /**
+     * Get recorded commands.
+     * @return recorded commands in recorded order
+     */
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * Re-issue recorded commands against given driver.
+     * @param driver target WebDriver
+     * @return replay report
+     */
+    public Report replay(WebDriver driver) {
+        Map<Class<?>, Object> targets = new HashMap<>();
+        targets.put(WebDriver.class, driver);
+        Report report = new Report();
+
+        for (Command command : commands) {
+            report.recordedNanos += command.getDuration();
+            Method method = command.resolve();
+            Object target = method == null ? null : findTarget(targets, method.getDeclaringClass(), driver);
+            Object[] args = method == null ? null : placeholderArgs(method);
+            if (target == null || args == null || isTerminating(method)) {
+                report.skipped++;
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try {
+                Object result = method.invoke(target, args);
+                rememberTarget(targets, method, result);
+            } catch (InvocationTargetException | IllegalAccessException e) {
+                report.failed++;
+            }
+            report.addTime(command.getSignature(), System.nanoTime() - start);
+            report.replayed++;
+        }
+        return report;
+    }
+
+    /**
+     * Re-issue recorded commands against given driver several times.
+     * @param driver target WebDriver
+     * @param iterations number of replays
+     * @return replay reports in order of iterations
+     */
+    public List<Report> replay(WebDriver driver, int iterations) {
+        List<Report> reports = new ArrayList<>(iterations);
+        for (int i = 0; i < iterations; i++)
+            reports.add(replay(driver));
+        return reports;
+    }
+
+    /**
+     * Build stub WebDriver, which answers every command immediately with empty values.
+     * @return stub WebDriver
+     */
+    public static WebDriver stubDriver() {
+        return (WebDriver) stub(new Class<?>[] {WebDriver.class, JavascriptExecutor.class, TakesScreenshot.class});
+    }
+
+    /**
+     * Replay trace from command line. Reports are written to logger of this class.
+     * @param args trace file, driver (stub or htmlunit) and number of iterations
+     * @throws IOException if trace can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1)
+            throw new IllegalArgumentException("Usage: CommandTraceReplay [trace file] [stub|htmlunit] [iterations]");
+        CommandTraceReplay replay = new CommandTraceReplay(new File(args[0]));
+        boolean htmlUnit = args.length > 1 && "htmlunit".equalsIgnoreCase(args[1]);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        WebDriver driver = htmlUnit ? new HtmlUnitDriver(true) : stubDriver();
+        List<Report> reports;
+        try {
+            reports = replay.replay(driver, iterations);
+        } finally {
+            driver.quit();
+        }
+        Logger logger = Logger.getLogger(CommandTraceReplay.class.getName());
+        for (int i = 0; i < reports.size(); i++)
+            logger.info("Iteration " + (i + 1) + " : " + reports.get(i));
+    }
+
+    /*
+    Privates
+     */
+
+    private static List<Command> read(File traceFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(traceFile, "r")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.limit() < CommandTraceRecorder.HEADER_SIZE
+                    || buffer.getInt(0) != CommandTraceRecorder.MAGIC
+                    || buffer.getShort(4) != CommandTraceRecorder.VERSION)
+                throw new IOException("Unknown trace format : " + traceFile);
+
+            Map<Integer, String> dictionary = new HashMap<>();
+            List<Integer> commandPositions = new ArrayList<>();
+            int index = CommandTraceRecorder.HEADER_SIZE;
+            while (index < buffer.limit()) {
+                byte type = buffer.get(index);
+                if (type == CommandTraceRecorder.DICTIONARY_RECORD) {
+                    int length = buffer.getShort(index + 5);
+                    byte[] signature = new byte[length];
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(index + 7);
+                    slice.get(signature);
+                    dictionary.put(buffer.getInt(index + 1), new String(signature, StandardCharsets.UTF_8));
+                    index += 7 + length;
+                } else if (type == CommandTraceRecorder.COMMAND_RECORD) {
+                    commandPositions.add(index);
+                    index += CommandTraceRecorder.COMMAND_RECORD_SIZE;
+                } else {
+                    break;
+                }
+            }
+
+            List<Command> commands = new ArrayList<>();
+            for (int at : commandPositions) {
+                commands.add(new Command(
+                        dictionary.get(buffer.getInt(at + 1)),
+                        buffer.getInt(at + 5),
+                        buffer.getLong(at + 9),
+                        buffer.getLong(at + 17),
+                        buffer.getInt(at + 25),
+                        buffer.get(at + 29) == CommandTraceRecorder.STATUS_FAILED
+                ));
+            }
+            return commands;
+        }
+    }
+
+    private static Object findTarget(Map<Class<?>, Object> targets, Class<?> type, WebDriver driver) {
+        Object target = targets.get(type);
+        if (target == null && type.isInstance(driver))
+            target = driver;
+        return target;
+    }
+
+    private static void rememberTarget(Map<Class<?>, Object> targets, Method method, Object result) {
+        if (result == null)
+            return;
+        if (result instanceof List) {
+            List<?> list = (List<?>) result;
+            if (!list.isEmpty() && list.get(0) instanceof WebElement)
+                targets.put(WebElement.class, list.get(0));
+        } else if (method.getReturnType().isInterface()) {
+            targets.put(method.getReturnType(), result);
+        }
+    }
+
+    private static boolean isTerminating(Method method) {
+        return WebDriver.class.equals(method.getDeclaringClass())
+                && ("quit".equals(method.getName()) || "close".equals(method.getName()));
+    }
+
+    private static Object[] placeholderArgs(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        Object[] args = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            if (type == String.class) {
+                args[i] = placeholderString(method);
+            } else if (type == By.class) {
+                args[i] = By.tagName("body");
+            } else if (type == Object[].class) {
+                args[i] = new Object[0];
+            } else if (type == long.class) {
+                args[i] = 0L;
+            } else if (type == int.class) {
+                args[i] = 0;
+            } else if (type == boolean.class) {
+                args[i] = false;
+            } else if (type == TimeUnit.class) {
+                args[i] = TimeUnit.MILLISECONDS;
+            } else if (type == OutputType.class) {
+                args[i] = OutputType.BYTES;
+            } else if (type == Dimension.class) {
+                args[i] = new Dimension(800, 600);
+            } else if (type == Point.class) {
+                args[i] = new Point(0, 0);
+            } else if (type == Cookie.class) {
+                args[i] = new Cookie("replay", "replay");
+            } else if (type == CharSequence[].class) {
+                args[i] = new CharSequence[] {""};
+            } else {
+                return null;
+            }
+        }
+        return args;
+    }
+
+    private static String placeholderString(Method method) {
+        switch (method.getName()) {
+            case "get":
+            case "to":
+                return "about:blank";
+            case "executeScript":
+                return "return null;";
+            case "executeAsyncScript":
+                return "arguments[arguments.length - 1](null);";
+            default:
+                return "";
+        }
+    }
+
+    private static Object stub(Class<?>[] interfaces) {
+        return Proxy.newProxyInstance(CommandTraceReplay.class.getClassLoader(), interfaces, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Class<?> type = method.getReturnType();
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "StubDriver";
+                    }
+                }
+                if (type == void.class)
+                    return null;
+                if (type == boolean.class)
+                    return false;
+                if (type == String.class)
+                    return "";
+                if (type == List.class)
+                    return Collections.emptyList();
+                if (type == Set.class)
+                    return Collections.emptySet();
+                if (type.isPrimitive())
+                    return 0;
+                if (type.isInterface())
+                    return stub(new Class<?>[] {type});
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Recorded command.
+     */
+    public static final class Command {
+        private final String signature;
+        private final int argsHash;
+        private final long start;
+        private final long duration;
+        private final int resultSize;
+        private final boolean failed;
+
+        Command(String signature, int argsHash, long start, long duration, int resultSize, boolean failed) {
+            this.signature = signature;
+            this.argsHash = argsHash;
+            this.start = start;
+            this.duration = duration;
+            this.resultSize = resultSize;
+            this.failed = failed;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public int getArgsHash() {
+            return argsHash;
+        }
+
+        /**
+         * Get command start, relative to trace start.
+         * @return start in nanoseconds
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Get recorded command duration.
+         * @return duration in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public int getResultSize() {
+            return resultSize;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        private Method resolve() {
+            if (signature == null)
+                return null;
+            try {
+                int hash = signature.indexOf('#');
+                int bracket = signature.indexOf('(');
+                Class<?> type = Class.forName(signature.substring(0, hash));
+                String name = signature.substring(hash + 1, bracket);
+                String parameters = signature.substring(bracket + 1, signature.length() - 1);
+                List<Class<?>> parameterTypes = new ArrayList<>();
+                if (!parameters.isEmpty()) {
+                    for (String parameter : parameters.split(","))
+                        parameterTypes.add(toClass(parameter));
+                }
+                return type.getMethod(name, parameterTypes.toArray(new Class<?>[parameterTypes.size()]));
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        private static Class<?> toClass(String name) throws ClassNotFoundException {
+            switch (name) {
+                case "long":
+                    return long.class;
+                case "int":
+                    return int.class;
+                case "boolean":
+                    return boolean.class;
+                case "double":
+                    return double.class;
+                default:
+                    return Class.forName(name);
+            }
+        }
+    }
+
+    /**
+     * Replay report.
+     */
+    public static final class Report {
+        private final Map<String, long[]> timePerCommand = new LinkedHashMap<>();
+        private long recordedNanos;
+        private long replayedNanos;
+        private int replayed;
+        private int skipped;
+        private int failed;
+
+        public int getReplayed() {
+            return replayed;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Get total duration of commands in trace.
+         * @return recorded duration in nanoseconds
+         */
+        public long getRecordedNanos() {
+            return recordedNanos;
+        }
+
+        /**
+         * Get total duration of replayed commands.
+         * @return replay duration in nanoseconds
+         */
+        public long getReplayedNanos() {
+            return replayedNanos;
+        }
+
+        /**
+         * Get count and total replay duration per command signature.
+         * @return map of signature to {count, nanoseconds}
+         */
+        public Map<String, long[]> getTimePerCommand() {
+            return Collections.unmodifiableMap(timePerCommand);
+        }
+
+        @Override
+        public String toString() {
+            return "replayed " + replayed + ", skipped " + skipped + ", failed " + failed
+                    + ", replay " + TimeUnit.NANOSECONDS.toMicros(replayedNanos) + " us"
+                    + ", recorded " + TimeUnit.NANOSECONDS.toMicros(recordedNanos) + " us";
+        }
+
+        private void addTime(String signature, long nanos) {
+            replayedNanos += nanos;
+            long[] time = timePerCommand.get(signature);
+            if (time == null) {
+                time = new long[2];
+                timePerCommand.put(signature, time);
+            }
+            time[0]++;
+            time[1] += nanos;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.base.Supplier;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.HasCapabilities;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.interactions.HasInputDevices;
+import org.openqa.selenium.internal.Locatable;
+import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.internal.WrapsElement;
+import org.testng.ITestResult;
+import org.testng.Reporter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lightweight (in-process HtmlUnitDriver) session, which escalates to real browser on demand.
+ * <p>
+ * Escalation happens once, when lightweight driver fails with JavaScript error or unsupported command,
+ * or when screenshot is requested. Real browser is launched, last URL is opened in it again with cookies,
+ * lightweight driver quits, and failed command is retried. If real browser can't be launched, lightweight driver
+ * stays in use and failure is thrown.
+ * <p>
+ * Driver, elements and other objects returned by it are proxies, which remember how they have been obtained,
+ * so they are resolved again in real browser after escalation. Frame selection is not replayed.
+ */
+final class EscalatingDriver {
+    /**
+     * TestNG group of tests, which run in lightweight driver.
+     */
+    static final String LIGHTWEIGHT_GROUP = "lightweight";
+
+    private static final String HTMLUNIT_SCRIPT_EXCEPTION = "com.gargoylesoftware.htmlunit.ScriptException";
+    private static final String UNKNOWN_TEST = "unknown";
+    private static final Class<?>[] DRIVER_INTERFACES = {
+            WebDriver.class, WrapsDriver.class, JavascriptExecutor.class, TakesScreenshot.class,
+            HasInputDevices.class, HasCapabilities.class
+    };
+    private static final Class<?>[] ELEMENT_INTERFACES = {WebElement.class, WrapsElement.class, Locatable.class};
+    private static final Class<?>[] WRAPPED_RESULTS = {
+            WebElement.class, WebDriver.Navigation.class, WebDriver.Options.class, WebDriver.Timeouts.class,
+            WebDriver.Window.class, WebDriver.TargetLocator.class, WebDriver.ImeHandler.class
+    };
+
+    private final Supplier<WebDriver> realDriverLauncher;
+    private final Object root;
+    private volatile WebDriver driver;
+    private volatile int generation;
+
+    private EscalatingDriver(WebDriver lightweightDriver, Supplier<WebDriver> realDriverLauncher) {
+        this.driver = lightweightDriver;
+        this.realDriverLauncher = realDriverLauncher;
+        this.root = Proxy.newProxyInstance(EscalatingDriver.class.getClassLoader(), DRIVER_INTERFACES,
+                new Handler(null, null, null, -1));
+    }
+
+    /**
+     * Wrap lightweight driver.
+     * @param lightweightDriver in-process driver
+     * @param realDriverLauncher launcher of real browser, which is called on escalation
+     * @return escalating driver
+     */
+    static WebDriver wrap(WebDriver lightweightDriver, Supplier<WebDriver> realDriverLauncher) {
+        return (WebDriver) new EscalatingDriver(lightweightDriver, realDriverLauncher).root;
+    }
+
+    /**
+     * Is current TestNG test in "lightweight" group.
+     * @return true, if current thread runs test of lightweight group
+     */
+    static boolean isLightweightTest() {
+        ITestResult result = Reporter.getCurrentTestResult();
+        return result != null && Arrays.asList(result.getMethod().getGroups()).contains(LIGHTWEIGHT_GROUP);
+    }
+
+    /**
+     * Is given driver lightweight session, which has not escalated yet.
+     * @param driver driver to check
+     * @return true, if driver is wrapped lightweight driver
+     */
+    static boolean isLightweight(WebDriver driver) {
+        if (driver == null || !Proxy.isProxyClass(driver.getClass())
+                || !(Proxy.getInvocationHandler(driver) instanceof Handler))
+            return false;
+        return !((Handler) Proxy.getInvocationHandler(driver)).getOwner().isEscalated();
+    }
+
+    /*
+    Privates
+     */
+
+    private static String getCurrentTestName() {
+        ITestResult result = Reporter.getCurrentTestResult();
+        if (result == null)
+            return UNKNOWN_TEST;
+        return result.getTestClass().getName() + "." + result.getMethod().getMethodName();
+    }
+
+    private static boolean isUnsupported(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnsupportedOperationException
+                    || cause instanceof UnsupportedCommandException
+                    || HTMLUNIT_SCRIPT_EXCEPTION.equals(cause.getClass().getName()))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isEscalated() {
+        return generation > 0;
+    }
+
+    private synchronized void escalate(String reason) {
+        if (isEscalated())
+            return;
+
+        WebDriver lightweightDriver = driver;
+        String url = null;
+        Set<Cookie> cookies = null;
+        try {
+            url = lightweightDriver.getCurrentUrl();
+            cookies = lightweightDriver.manage().getCookies();
+        } catch (WebDriverException ignored) {
+            // page is not replayed
+        }
+        // lightweight driver stays in use, if real browser can't be launched
+        WebDriver realDriver = realDriverLauncher.get();
+        driver = realDriver;
+        generation++;
+        WDServiceStats.getInstance().recordEscalation(getCurrentTestName(), reason);
+
+        // lightweight driver quits after replay, so its session is still alive, if replay fails
+        try {
+            if (url != null && !url.startsWith("about:")) {
+                realDriver.get(url);
+                if (cookies != null && !cookies.isEmpty()) {
+                    for (Cookie cookie : cookies) {
+                        try {
+                            realDriver.manage().addCookie(cookie);
+                        } catch (WebDriverException ignored) {
+                            // cookie of another domain
+                        }
+                    }
+                    realDriver.navigate().refresh();
+                }
+            }
+        } finally {
+            lightweightDriver.quit();
+        }
+    }
+
+    private Object[] unwrapArgs(Object[] args) {
+        if (args == null)
+            return null;
+        Object[] unwrapped = new Object[args.length];
+        for (int i = 0; i < args.length; i++)
+            unwrapped[i] = unwrap(args[i]);
+        return unwrapped;
+    }
+
+    private Object unwrap(Object arg) {
+        if (arg != null && Proxy.isProxyClass(arg.getClass()) && Proxy.getInvocationHandler(arg) instanceof Handler)
+            return ((Handler) Proxy.getInvocationHandler(arg)).getTarget();
+        if (arg instanceof Object[])
+            return unwrapArgs((Object[]) arg);
+        return arg;
+    }
+
+    /**
+     * Handler of driver (without parent) or of object, which is returned by parent's method.
+     */
+    private final class Handler implements InvocationHandler {
+        private final Handler parent;
+        private final Method method;
+        private final Object[] args;
+        private final int index;
+        private Object target;
+        private int targetGeneration;
+
+        Handler(Handler parent, Method method, Object[] args, int index) {
+            this.parent = parent;
+            this.method = method;
+            this.args = args;
+            this.index = index;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method invoked, Object[] invokedArgs) throws Throwable {
+            if (invoked.getDeclaringClass() == Object.class)
+                return invokeObjectMethod(proxy, invoked, invokedArgs);
+            if (invoked.getDeclaringClass() == WrapsDriver.class)
+                return driver;
+            if (invoked.getDeclaringClass() == WrapsElement.class)
+                return getTarget();
+            if (invoked.getDeclaringClass() == TakesScreenshot.class && !(driver instanceof TakesScreenshot))
+                escalate("screenshot");
+
+            Object result;
+            try {
+                result = invokeTarget(invoked, invokedArgs);
+            } catch (Throwable failure) {
+                if (isEscalated() || !isUnsupported(failure))
+                    throw failure;
+                escalate(failure.getClass().getSimpleName() + ": " + invoked.getName());
+                result = invokeTarget(invoked, invokedArgs);
+            }
+            return wrapResult(invoked, invokedArgs, result);
+        }
+
+        EscalatingDriver getOwner() {
+            return EscalatingDriver.this;
+        }
+
+        Object getTarget() {
+            if (parent == null)
+                return driver;
+            if (target == null || targetGeneration != generation) {
+                int currentGeneration = generation;
+                try {
+                    Object resolved = method.invoke(parent.getTarget(), unwrapArgs(args));
+                    target = index < 0 ? resolved : ((List<?>) resolved).get(index);
+                } catch (InvocationTargetException e) {
+                    throw propagate(e.getCause());
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                targetGeneration = currentGeneration;
+            }
+            return target;
+        }
+
+        private Object invokeTarget(Method invoked, Object[] invokedArgs) throws Throwable {
+            Object currentTarget = getTarget();
+            if (!invoked.getDeclaringClass().isInstance(currentTarget))
+                throw new UnsupportedOperationException(
+                        currentTarget.getClass().getName() + " doesn't implement " + invoked.getDeclaringClass().getName());
+            try {
+                return invoked.invoke(currentTarget, unwrapArgs(invokedArgs));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private Object wrapResult(Method invoked, Object[] invokedArgs, Object result) {
+            if (result == null)
+                return null;
+            if (result instanceof WebDriver)
+                return root;
+            if (result instanceof List && invoked.getReturnType() == List.class) {
+                List<Object> wrapped = new ArrayList<>();
+                List<?> items = (List<?>) result;
+                for (int i = 0; i < items.size(); i++) {
+                    Object item = items.get(i);
+                    wrapped.add(item instanceof WebElement
+                            ? newProxy(ELEMENT_INTERFACES, new Handler(this, invoked, invokedArgs, i), item)
+                            : item);
+                }
+                return wrapped;
+            }
+            for (Class<?> type : WRAPPED_RESULTS) {
+                if (invoked.getReturnType() == type) {
+                    Class<?>[] interfaces = type == WebElement.class ? ELEMENT_INTERFACES : new Class<?>[] {type};
+                    return newProxy(interfaces, new Handler(this, invoked, invokedArgs, -1), result);
+                }
+            }
+            return result;
+        }
+
+        private Object newProxy(Class<?>[] interfaces, Handler handler, Object resolved) {
+            handler.target = resolved;
+            handler.targetGeneration = generation;
+            return Proxy.newProxyInstance(EscalatingDriver.class.getClassLoader(), interfaces, handler);
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method invoked, Object[] invokedArgs) throws Throwable {
+            switch (invoked.getName()) {
+                case "equals":
+                    return proxy == invokedArgs[0] || getTarget().equals(unwrap(invokedArgs[0]));
+                case "hashCode":
+                    return getTarget().hashCode();
+                default:
+                    return invoked.invoke(getTarget(), invokedArgs);
+            }
+        }
+
+        private RuntimeException propagate(Throwable failure) {
+            if (failure instanceof RuntimeException)
+                return (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            return new WebDriverException(failure);
+        }
+    }
+}
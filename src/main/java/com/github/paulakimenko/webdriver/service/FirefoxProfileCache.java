@@ -0,0 +1,367 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.firefox.FirefoxDriver;
+import org.openqa.selenium.firefox.FirefoxProfile;
+import org.openqa.selenium.firefox.internal.ClasspathExtension;
+import org.openqa.selenium.internal.BuildInfo;
+import org.openqa.selenium.io.FileHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache of laid out Firefox profile templates.
+ * <p>
+ * Template is laid out on disk once per distinct preferences and extensions set (keyed by hash)
+ * and then copied into every new profile. Least recently used templates are removed from disk.
+ * <p>
+ * Template directory is shared by all JVMs of machine (e.g. surefire forks), so it is guarded by file lock:
+ * templates are built and evicted under exclusive lock, and read under shared lock. Template is never changed
+ * after it has been built; template, which has been evicted by another JVM, is built again.
+ */
+final class FirefoxProfileCache {
+    private static final String WEBDRIVER_EXTENSION = "webdriver";
+    private static final String CUSTOM_EXTENSION_PROPERTY = "webdriver.firefox.driver";
+    private static final String EXTENSIONS_DIR = "extensions";
+    private static final String READY_MARKER = ".webdriver-service-template";
+    private static final String LOCK_FILE = ".lock";
+    private static final int MAX_TEMPLATES = 8;
+
+    private static final FirefoxProfileCache INSTANCE = new FirefoxProfileCache(
+            new File(System.getProperty("java.io.tmpdir"), "webdriver-service-profiles"), MAX_TEMPLATES);
+
+    private final File root;
+    private final int maxTemplates;
+    private final DirectoryLock lock;
+
+    FirefoxProfileCache(File root, int maxTemplates) {
+        this.root = root;
+        this.maxTemplates = maxTemplates;
+        this.lock = new DirectoryLock(new File(root, LOCK_FILE));
+    }
+
+    /**
+     * Get shared cache instance.
+     * @return shared cache instance
+     */
+    static FirefoxProfileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Put cached profile into Firefox capabilities.
+     * <p>
+     * Capabilities with explicit profile, or with disabled cache are returned untouched.
+     * @param capabilities capabilities to start browser with
+     * @param wdCapabilities given capabilities
+     * @return capabilities with cached profile
+     */
+    Capabilities withCachedProfile(Capabilities capabilities, WDCapabilities wdCapabilities) {
+        if (!wdCapabilities.isFirefoxProfileCacheEnabled() || capabilities.getCapability(FirefoxDriver.PROFILE) != null)
+            return capabilities;
+
+        WDDesiredCapabilities cachedCapabilities = new WDDesiredCapabilities().merge(capabilities);
+        cachedCapabilities.setCapability(FirefoxDriver.PROFILE, getProfile(
+                PerformanceProfiles.getFirefoxPreferences(wdCapabilities.getPerformanceProfile()),
+                wdCapabilities.getFirefoxExtensions()));
+        return cachedCapabilities;
+    }
+
+    /**
+     * Get new profile, which is based on cached template.
+     * @param preferences Firefox preferences (String, Integer or Boolean values)
+     * @param extensions Firefox extension files
+     * @return new profile
+     */
+    FirefoxProfile getProfile(final Map<String, Object> preferences, final List<File> extensions) {
+        try {
+            return withTemplate(preferences, extensions, new TemplateAction<FirefoxProfile>() {
+                @Override
+                public FirefoxProfile apply(File template) {
+                    return new TemplateProfile(template, preferences, extensions);
+                }
+            });
+        } catch (IOException e) {
+            throw new WebDriverException("Can't build Firefox profile template.", e);
+        }
+    }
+
+    /*
+    Privates
+     */
+
+    /**
+     * Run action with template, which is guarded by shared lock, so no JVM could evict it meanwhile.
+     */
+    private <T> T withTemplate(Map<String, Object> preferences, List<File> extensions, TemplateAction<T> action)
+            throws IOException {
+        File template = new File(root, getKey(preferences, extensions));
+        while (true) {
+            if (!isReady(template))
+                buildTemplate(template, preferences, extensions);
+
+            lock.lockShared();
+            try {
+                // template could be evicted by another JVM between build and shared lock
+                if (isReady(template)) {
+                    template.setLastModified(System.currentTimeMillis());
+                    return action.apply(template);
+                }
+            } finally {
+                lock.unlockShared();
+            }
+        }
+    }
+
+    private static boolean isReady(File template) {
+        return new File(template, READY_MARKER).exists();
+    }
+
+    private void buildTemplate(File template, Map<String, Object> preferences, List<File> extensions)
+            throws IOException {
+        FileHandler.createDir(root);
+        FileLock exclusiveLock = lock.lockExclusive();
+        try {
+            // template could be built by another JVM, while this one has been waiting for lock
+            if (isReady(template))
+                return;
+
+            FirefoxProfile profile = new FirefoxProfile();
+            PerformanceProfiles.setPreferences(profile, preferences);
+            for (File extension : extensions)
+                profile.addExtension(extension);
+            addWebDriverExtension(profile);
+
+            File layout = profile.layoutOnDisk();
+            File tempTemplate = new File(root, template.getName() + "-" + UUID.randomUUID());
+            try {
+                FileHandler.copy(layout, tempTemplate);
+                if (!new File(tempTemplate, READY_MARKER).createNewFile())
+                    throw new IOException("Can't mark template " + tempTemplate);
+                if (!tempTemplate.renameTo(template))
+                    throw new IOException("Can't move template to " + template);
+            } finally {
+                profile.clean(layout);
+                if (tempTemplate.exists())
+                    FileHandler.delete(tempTemplate);
+            }
+            evictStaleTemplates(template);
+        } finally {
+            lock.unlockExclusive(exclusiveLock);
+        }
+    }
+
+    /**
+     * Remove least recently used templates and leftovers of failed builds. Called under exclusive lock,
+     * so no template is in use, and no template is being built.
+     */
+    private void evictStaleTemplates(File current) {
+        File[] files = root.listFiles();
+        if (files == null)
+            return;
+
+        List<File> templates = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isDirectory() || file.equals(current))
+                continue;
+            if (isReady(file))
+                templates.add(file);
+            else
+                FileHandler.delete(file);
+        }
+        if (templates.size() < maxTemplates)
+            return;
+
+        Collections.sort(templates, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+        for (File stale : templates.subList(0, templates.size() - maxTemplates + 1))
+            FileHandler.delete(stale);
+    }
+
+    private static void addWebDriverExtension(FirefoxProfile profile) {
+        String custom = System.getProperty(CUSTOM_EXTENSION_PROPERTY);
+        if (custom == null) {
+            profile.addExtension(WEBDRIVER_EXTENSION, new ClasspathExtension(FirefoxProfile.class,
+                    "/" + FirefoxProfile.class.getPackage().getName().replace(".", "/") + "/webdriver.xpi"));
+        } else {
+            try {
+                profile.addExtension(new File(custom));
+            } catch (IOException e) {
+                throw new WebDriverException("Can't add custom WebDriver extension " + custom, e);
+            }
+        }
+    }
+
+    private static String getKey(Map<String, Object> preferences, List<File> extensions) {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putString(new BuildInfo().getReleaseLabel(), StandardCharsets.UTF_8)
+                .putString(String.valueOf(System.getProperty(CUSTOM_EXTENSION_PROPERTY)), StandardCharsets.UTF_8);
+        for (Map.Entry<String, Object> entry : new TreeMap<>(preferences).entrySet()) {
+            hasher.putString(entry.getKey(), StandardCharsets.UTF_8)
+                    .putString(String.valueOf(entry.getValue()), StandardCharsets.UTF_8);
+        }
+        for (File extension : extensions) {
+            hasher.putString(extension.getAbsolutePath(), StandardCharsets.UTF_8)
+                    .putLong(extension.lastModified())
+                    .putLong(extension.length());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Action with template, which is run under shared lock.
+     */
+    private interface TemplateAction<T> {
+        T apply(File template) throws IOException;
+    }
+
+    /**
+     * Profile which uses template as model.
+     * <p>
+     * WebDriver extension is already installed in template, so it is not installed again.
+     * Template is copied under shared lock, and it is built again if it has been evicted.
+     */
+    private final class TemplateProfile extends FirefoxProfile {
+        private final Map<String, Object> preferences;
+        private final List<File> extensions;
+
+        TemplateProfile(File template, Map<String, Object> preferences, List<File> extensions) {
+            super(template);
+            this.preferences = preferences;
+            this.extensions = extensions;
+        }
+
+        @Override
+        public boolean containsWebDriverExtension() {
+            return true;
+        }
+
+        @Override
+        protected void copyModel(File sourceDir, final File profileDir) throws IOException {
+            withTemplate(preferences, extensions, new TemplateAction<Void>() {
+                @Override
+                public Void apply(File template) throws IOException {
+                    copyTemplate(template.toPath(), profileDir.toPath());
+                    return null;
+                }
+            });
+        }
+
+        private void copyTemplate(final Path source, final Path target) throws IOException {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(target.resolve(source.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!file.endsWith(READY_MARKER)) {
+                        Files.copy(file, target.resolve(source.relativize(file)),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * Read-write lock of template directory, which works across JVMs.
+     * <p>
+     * Threads of this JVM share one file lock (file locks are held on behalf of whole JVM):
+     * the first reader takes shared file lock and the last one releases it.
+     */
+    private static final class DirectoryLock {
+        private final File lockFile;
+        private final ReentrantReadWriteLock threadLock = new ReentrantReadWriteLock();
+        private FileChannel channel;
+        private FileLock sharedLock;
+        private int readers;
+
+        DirectoryLock(File lockFile) {
+            this.lockFile = lockFile;
+        }
+
+        void lockShared() throws IOException {
+            threadLock.readLock().lock();
+            try {
+                synchronized (this) {
+                    if (readers == 0)
+                        sharedLock = getChannel().lock(0, Long.MAX_VALUE, true);
+                    readers++;
+                }
+            } catch (IOException | RuntimeException e) {
+                threadLock.readLock().unlock();
+                throw e;
+            }
+        }
+
+        void unlockShared() throws IOException {
+            try {
+                synchronized (this) {
+                    if (--readers == 0) {
+                        FileLock lock = sharedLock;
+                        sharedLock = null;
+                        lock.release();
+                    }
+                }
+            } finally {
+                threadLock.readLock().unlock();
+            }
+        }
+
+        FileLock lockExclusive() throws IOException {
+            threadLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    return getChannel().lock();
+                }
+            } catch (IOException | RuntimeException e) {
+                threadLock.writeLock().unlock();
+                throw e;
+            }
+        }
+
+        void unlockExclusive(FileLock lock) throws IOException {
+            try {
+                lock.release();
+            } finally {
+                threadLock.writeLock().unlock();
+            }
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            return channel;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.paulakimenko.webdriver.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with power of two microsecond buckets, striped by thread.
+ * <p>
+ * Percentiles are reported as upper bounds of buckets, so they are accurate up to a factor of two.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.stripes() * BUCKETS);
+
+    void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket);
+    }
+
+    /**
+     * Get latency percentile.
+     * @param percentile percentile (e.g. 0.99)
+     * @return percentile in milliseconds, or 0 if nothing has been recorded
+     */
+    double getPercentile(double percentile) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            merged[i % BUCKETS] += count;
+            total += count;
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += merged[bucket];
+            if (seen >= rank)
+                return (1L << bucket) / 1000.0;
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.paulakimenko.webdriver.service;
+
+/**
+ * Bridge to external metrics registry (e.g. Dropwizard Metrics, Micrometer).
+ * <p>
+ * Called from test threads, so implementation should be thread safe and cheap.
+ */
+public interface MetricsBridge {
+    /**
+     * Change counter value.
+     * @param name metric name
+     * @param delta counter delta
+     */
+    void count(String name, long delta);
+
+    /**
+     * Record duration.
+     * @param name metric name
+     * @param nanos duration in nanoseconds
+     */
+    void time(String name, long nanos);
+}
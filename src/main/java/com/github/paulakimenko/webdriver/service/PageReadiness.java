@@ -0,0 +1,267 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchWindowException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.SessionNotFoundException;
+import org.openqa.selenium.remote.UnreachableBrowserException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detection of page readiness by DOM and network stability.
+ * <p>
+ * Tracker script is injected into page on the first poll after navigation. It counts DOM mutations and pending
+ * XMLHttpRequest and fetch requests. DOM is observed with MutationObserver; where it is not supported
+ * (e.g. HtmlUnit), markup of document is compared on every poll instead.
+ * Page is ready when document is loaded, no tracked request is pending, and neither DOM nor network
+ * has changed for the quiet period.
+ * <p>
+ * Requests, which have been started before injection, are not tracked, but DOM changes made by their
+ * callbacks restart the quiet period.
+ */
+public final class PageReadiness {
+    private static final long MIN_POLL_MILLIS = 10;
+    private static final long BUSY_POLL_MILLIS = 50;
+    private static final String COMPLETE = "complete";
+    private static final String TRACKER_SCRIPT =
+            "var w = window, t = w.__webdriverServiceReadiness;"
+                    + "function now() { return new Date().getTime(); }"
+                    + "if (!t) {"
+                    + "  t = w.__webdriverServiceReadiness = {pending: 0, requests: 0, mutations: 0, last: now(), dom: false};"
+                    + "  var touch = function () { t.mutations++; t.last = now(); };"
+                    + "  t.touch = touch;"
+                    + "  var done = function () { if (t.pending > 0) t.pending--; t.last = now(); };"
+                    + "  if (w.MutationObserver) {"
+                    + "    new w.MutationObserver(touch).observe(document,"
+                    + "        {childList: true, subtree: true, attributes: true, characterData: true});"
+                    + "    t.dom = true;"
+                    + "  }"
+                    + "  var xhr = w.XMLHttpRequest && w.XMLHttpRequest.prototype;"
+                    + "  if (xhr && xhr.send) {"
+                    + "    var send = xhr.send;"
+                    + "    xhr.send = function () {"
+                    + "      var request = this, finished = false;"
+                    + "      var finish = function () {"
+                    + "        if (!finished && request.readyState == 4) { finished = true; done(); }"
+                    + "      };"
+                    + "      t.pending++; t.requests++; t.last = now();"
+                    + "      if (request.addEventListener) {"
+                    + "        request.addEventListener('readystatechange', finish, false);"
+                    + "      } else {"
+                    + "        var handler = request.onreadystatechange;"
+                    + "        request.onreadystatechange = function () {"
+                    + "          finish(); if (handler) return handler.apply(this, arguments);"
+                    + "        };"
+                    + "      }"
+                    + "      try { return send.apply(this, arguments); }"
+                    + "      catch (e) { if (!finished) { finished = true; done(); } throw e; }"
+                    + "    };"
+                    + "  }"
+                    + "  if (w.fetch) {"
+                    + "    var fetch = w.fetch;"
+                    + "    w.fetch = function () {"
+                    + "      t.pending++; t.requests++; t.last = now();"
+                    + "      return fetch.apply(this, arguments).then("
+                    + "          function (response) { done(); return response; },"
+                    + "          function (error) { done(); throw error; });"
+                    + "    };"
+                    + "  }"
+                    + "}"
+                    + "if (!t.dom) {"
+                    + "  var snapshot = document.documentElement ? document.documentElement.innerHTML : '';"
+                    + "  if (t.snapshot !== undefined && t.snapshot != snapshot) t.touch();"
+                    + "  t.snapshot = snapshot;"
+                    + "}"
+                    + "return [document.readyState, t.pending, now() - t.last, t.mutations, t.requests, t.dom];";
+
+    private PageReadiness() {}
+
+    /**
+     * Wait until page is ready: document is loaded, and DOM and network have been quiet for given period.
+     * <p>
+     * Polls are adaptive: while page is busy it is polled every 50 milliseconds, when page is quiet the next poll
+     * happens right at the end of quiet period (unless DOM is not observed by browser and has to be compared
+     * every 50 milliseconds).
+     * @param driver WebDriver, which implements JavascriptExecutor
+     * @param quietPeriod quiet period (0 to wait only for loaded document and finished requests)
+     * @param timeout maximum wait
+     * @param timeUnit time unit of quiet period and timeout
+     * @return report of wait
+     * @throws WebDriverException if window or session is gone, or browser is unreachable
+     */
+    public static Report await(WebDriver driver, long quietPeriod, long timeout, TimeUnit timeUnit) {
+        JavascriptExecutor jsExecutor = (JavascriptExecutor) driver;
+        long quietMillis = timeUnit.toMillis(quietPeriod);
+        long start = System.nanoTime();
+        long deadline = start + timeUnit.toNanos(timeout);
+        int polls = 0;
+        State state = null;
+        while (true) {
+            polls++;
+            try {
+                state = new State((List<?>) jsExecutor.executeScript(TRACKER_SCRIPT));
+            } catch (NoSuchWindowException | SessionNotFoundException | UnreachableBrowserException e) {
+                throw e;
+            } catch (WebDriverException | ClassCastException e) {
+                // page is being replaced, tracker is injected again on the next poll
+                state = null;
+            }
+
+            boolean ready = state != null && state.isSettled() && state.quietMillis >= quietMillis;
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (ready || remaining <= 0) {
+                long waitNanos = System.nanoTime() - start;
+                WDServiceStats.getInstance().recordReadinessWait(waitNanos, ready);
+                return new Report(driver.getCurrentUrl(), ready, TimeUnit.NANOSECONDS.toMillis(waitNanos), polls,
+                        state);
+            }
+
+            long pause = state != null && state.isSettled()
+                    ? Math.max(MIN_POLL_MILLIS, quietMillis - state.quietMillis)
+                    : BUSY_POLL_MILLIS;
+            if (state == null || !state.domObserved)
+                pause = Math.min(pause, BUSY_POLL_MILLIS);
+            sleep(Math.min(pause, remaining));
+        }
+    }
+
+    /*
+    Privates
+     */
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Waiting for page readiness has been interrupted.", e);
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * State of page, which is returned by tracker script.
+     */
+    private static final class State {
+        private final String readyState;
+        private final long pendingRequests;
+        private final long quietMillis;
+        private final long mutations;
+        private final long requests;
+        private final boolean domObserved;
+
+        State(List<?> values) {
+            readyState = values.get(0) == null ? COMPLETE : String.valueOf(values.get(0));
+            pendingRequests = toLong(values.get(1));
+            quietMillis = toLong(values.get(2));
+            mutations = toLong(values.get(3));
+            requests = toLong(values.get(4));
+            domObserved = Boolean.TRUE.equals(values.get(5));
+        }
+
+        boolean isSettled() {
+            return COMPLETE.equals(readyState) && pendingRequests == 0;
+        }
+    }
+
+    /**
+     * Report of one wait for page readiness.
+     */
+    public static final class Report {
+        private final String url;
+        private final boolean ready;
+        private final long waitMillis;
+        private final int polls;
+        private final long mutations;
+        private final long requests;
+        private final long pendingRequests;
+        private final boolean domObserved;
+
+        Report(String url, boolean ready, long waitMillis, int polls, State state) {
+            this.url = url;
+            this.ready = ready;
+            this.waitMillis = waitMillis;
+            this.polls = polls;
+            this.mutations = state == null ? 0 : state.mutations;
+            this.requests = state == null ? 0 : state.requests;
+            this.pendingRequests = state == null ? 0 : state.pendingRequests;
+            this.domObserved = state != null && state.domObserved;
+        }
+
+        /**
+         * Get URL of page.
+         * @return current URL after wait
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Is page ready.
+         * @return true if page has become quiet, false if wait has timed out
+         */
+        public boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * Get time of wait.
+         * @return wait time in milliseconds
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        /**
+         * Get number of polls.
+         * @return number of tracker script executions
+         */
+        public int getPolls() {
+            return polls;
+        }
+
+        /**
+         * Get number of DOM mutations since tracker injection.
+         * @return number of DOM mutations
+         */
+        public long getMutations() {
+            return mutations;
+        }
+
+        /**
+         * Get number of XMLHttpRequest and fetch requests since tracker injection.
+         * @return number of requests
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Get number of requests, which were pending at the end of wait.
+         * @return number of pending requests
+         */
+        public long getPendingRequests() {
+            return pendingRequests;
+        }
+
+        /**
+         * Are DOM mutations observed by browser.
+         * @return true if MutationObserver is supported, false if DOM snapshots are compared on polls
+         */
+        public boolean isDomObserved() {
+            return domObserved;
+        }
+
+        @Override
+        public String toString() {
+            return (ready ? "ready" : "not ready") + " after " + waitMillis + " ms (" + polls + " polls, "
+                    + mutations + " mutations, " + requests + " requests, " + pendingRequests + " pending): " + url;
+        }
+    }
+}
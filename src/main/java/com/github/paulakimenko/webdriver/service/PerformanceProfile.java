@@ -0,0 +1,15 @@
+package com.github.paulakimenko.webdriver.service;
+
+/**
+ * Performance profiles of WebDriver.
+ * <p>
+ * DEFAULT leaves browser settings untouched.
+ * <p>
+ * FAST uses eager page load strategy where supported and disables animations after navigation.
+ * Blocking of resources depends on browser: PhantomJS aborts requests, which match blocked URL pattern
+ * (images, fonts and media); Firefox disables images, downloadable fonts, ogg/webm media and Flash by preferences;
+ * Chrome disables images and plugins by preferences. Other browsers don't block resources.
+ */
+public enum PerformanceProfile {
+    DEFAULT, FAST
+}
@@ -0,0 +1,266 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.firefox.FirefoxDriver;
+import org.openqa.selenium.firefox.FirefoxProfile;
+import org.openqa.selenium.io.FileHandler;
+import org.openqa.selenium.io.TemporaryFilesystem;
+import org.openqa.selenium.phantomjs.PhantomJSDriver;
+import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.support.events.AbstractWebDriverEventListener;
+import org.openqa.selenium.support.events.EventFiringWebDriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Browser specific settings of performance profiles.
+ */
+final class PerformanceProfiles {
+    static final String DEFAULT_BLOCKED_URL_PATTERN =
+            ".*\\.(png|jpe?g|gif|webp|bmp|ico|svg|woff2?|ttf|otf|eot|mp3|mp4|ogg|ogv|webm|wav|avi|flv|swf)(\\?.*)?$";
+
+    private static final String PAGE_LOAD_STRATEGY = "pageLoadStrategy";
+    private static final String PHANTOMJS_LOAD_IMAGES = "phantomjs.page.settings.loadImages";
+    private static final String CHROME_PREFERENCES = "prefs";
+    private static final String CHROME_BINARY = "binary";
+    private static final String CHROME_ARGUMENTS = "args";
+    private static final String CHROME_EXTENSIONS = "extensions";
+    private static final String FIREFOX_USER_PREFERENCES = "user.js";
+    private static final Pattern FIREFOX_USER_PREFERENCE = Pattern.compile("user_pref\\(\"([^\"]+)\"");
+    private static final String NO_ANIMATIONS_STYLE =
+            "*, *::before, *::after {"
+                    + " -webkit-transition: none !important; transition: none !important;"
+                    + " -webkit-animation: none !important; animation: none !important; }";
+    private static final String INJECT_STYLE_SCRIPT =
+            "if (document.getElementById('webdriver-service-no-animations')) return;"
+                    + "var style = document.createElement('style');"
+                    + "style.id = 'webdriver-service-no-animations';"
+                    + "style.type = 'text/css';"
+                    + "style.appendChild(document.createTextNode(arguments[0]));"
+                    + "(document.head || document.documentElement).appendChild(style);";
+    private static final String BLOCK_RESOURCES_SCRIPT =
+            "var pattern = new RegExp(arguments[0], 'i');"
+                    + "this.onResourceRequested = function(requestData, networkRequest) {"
+                    + "  if (pattern.test(requestData.url)) networkRequest.abort();"
+                    + "};";
+
+    private static final Map<String, Object> FAST_FIREFOX_PREFERENCES;
+    private static final Map<String, Object> FAST_CHROME_PREFERENCES;
+
+    static {
+        Map<String, Object> preferences = new LinkedHashMap<>();
+        preferences.put("permissions.default.image", 2);
+        preferences.put("gfx.downloadable_fonts.enabled", false);
+        preferences.put("browser.display.use_document_fonts", 0);
+        preferences.put("media.autoplay.enabled", false);
+        preferences.put("media.ogg.enabled", false);
+        preferences.put("media.webm.enabled", false);
+        preferences.put("plugin.state.flash", 0);
+        preferences.put("webdriver.load.strategy", "unstable");
+        FAST_FIREFOX_PREFERENCES = Collections.unmodifiableMap(preferences);
+
+        preferences = new LinkedHashMap<>();
+        preferences.put("profile.managed_default_content_settings.images", 2);
+        preferences.put("profile.managed_default_content_settings.plugins", 2);
+        FAST_CHROME_PREFERENCES = Collections.unmodifiableMap(preferences);
+    }
+
+    private PerformanceProfiles() {}
+
+    /**
+     * Get Firefox preferences of given profile.
+     * @param profile performance profile
+     * @return Firefox preferences (String, Integer or Boolean values)
+     */
+    static Map<String, Object> getFirefoxPreferences(PerformanceProfile profile) {
+        return PerformanceProfile.FAST.equals(profile)
+                ? FAST_FIREFOX_PREFERENCES
+                : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * Build browser capabilities for profile from given capabilities.
+     * @param wdCapabilities given capabilities
+     * @return capabilities to start browser with
+     */
+    static Capabilities toBrowserCapabilities(WDCapabilities wdCapabilities) {
+        if (!PerformanceProfile.FAST.equals(wdCapabilities.getPerformanceProfile()))
+            return wdCapabilities;
+
+        WDDesiredCapabilities capabilities = new WDDesiredCapabilities().merge(wdCapabilities);
+        capabilities.setCapability(PAGE_LOAD_STRATEGY, "eager");
+
+        switch (String.valueOf(wdCapabilities.getBrowserName())) {
+            case BrowserType.FIREFOX:
+                Object rawProfile = capabilities.getCapability(FirefoxDriver.PROFILE);
+                if (rawProfile instanceof FirefoxProfile) {
+                    capabilities.setCapability(FirefoxDriver.PROFILE,
+                            withDefaultPreferences((FirefoxProfile) rawProfile, FAST_FIREFOX_PREFERENCES));
+                } else if (rawProfile == null && !wdCapabilities.isFirefoxProfileCacheEnabled()) {
+                    FirefoxProfile profile = new FirefoxProfile();
+                    setPreferences(profile, FAST_FIREFOX_PREFERENCES);
+                    capabilities.setCapability(FirefoxDriver.PROFILE, profile);
+                }
+                break;
+            case BrowserType.CHROME:
+                Object rawOptions = capabilities.getCapability(ChromeOptions.CAPABILITY);
+                capabilities.setCapability(ChromeOptions.CAPABILITY, rawOptions instanceof ChromeOptions
+                        ? withDefaultPreferences((ChromeOptions) rawOptions, FAST_CHROME_PREFERENCES)
+                        : withDefaultPreferences(new ChromeOptions(), FAST_CHROME_PREFERENCES));
+                break;
+            case BrowserType.PHANTOMJS:
+                capabilities.setCapability(PHANTOMJS_LOAD_IMAGES, false);
+                break;
+            default:
+                break;
+        }
+        return capabilities;
+    }
+
+    /**
+     * Apply runtime part of profile to started WebDriver.
+     * @param driver started WebDriver
+     * @param wdCapabilities given capabilities
+     * @return given WebDriver, or WebDriver which disables animations after navigation
+     */
+    static WebDriver decorate(WebDriver driver, WDCapabilities wdCapabilities) {
+        if (!PerformanceProfile.FAST.equals(wdCapabilities.getPerformanceProfile()))
+            return driver;
+
+        if (driver instanceof PhantomJSDriver)
+            ((PhantomJSDriver) driver).executePhantomJS(BLOCK_RESOURCES_SCRIPT, wdCapabilities.getBlockedUrlPattern());
+
+        return new EventFiringWebDriver(driver).register(new AnimationsDisabler());
+    }
+
+    static void setPreferences(FirefoxProfile profile, Map<String, Object> preferences) {
+        for (Map.Entry<String, Object> entry : preferences.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                profile.setPreference(entry.getKey(), (Boolean) value);
+            } else if (value instanceof Integer) {
+                profile.setPreference(entry.getKey(), (Integer) value);
+            } else {
+                profile.setPreference(entry.getKey(), String.valueOf(value));
+            }
+        }
+    }
+
+    /*
+    Privates
+     */
+
+    /**
+     * Copy user supplied Firefox profile with preferences, which have not been set by user.
+     * <p>
+     * User preferences are only readable from laid out profile, so the copy gets its own model directory
+     * (cleaned by FirefoxDriver on quit) and laid out profile is deleted.
+     */
+    private static FirefoxProfile withDefaultPreferences(FirefoxProfile profile, Map<String, Object> preferences) {
+        File profileDir = profile.layoutOnDisk();
+        Set<String> userPreferences = new HashSet<>();
+        File copyDir;
+        try {
+            Matcher matcher = FIREFOX_USER_PREFERENCE.matcher(new String(
+                    Files.readAllBytes(new File(profileDir, FIREFOX_USER_PREFERENCES).toPath()),
+                    StandardCharsets.UTF_8));
+            while (matcher.find())
+                userPreferences.add(matcher.group(1));
+            copyDir = TemporaryFilesystem.getDefaultTmpFS().createTempDir("webdriver", "duplicated");
+            FileHandler.copy(profileDir, copyDir);
+        } catch (IOException e) {
+            throw new WebDriverException("Can't read preferences of Firefox profile.", e);
+        } finally {
+            profile.clean(profileDir);
+        }
+
+        FirefoxProfile copy = new FirefoxProfile(copyDir);
+        copy.setAlwaysLoadNoFocusLib(profile.shouldLoadNoFocusLib());
+        Map<String, Object> defaultPreferences = new LinkedHashMap<>(preferences);
+        defaultPreferences.keySet().removeAll(userPreferences);
+        setPreferences(copy, defaultPreferences);
+        return copy;
+    }
+
+    /**
+     * Copy Chrome options with "prefs", which have not been set by user.
+     */
+    private static ChromeOptions withDefaultPreferences(ChromeOptions options, Map<String, Object> preferences) {
+        JsonObject json;
+        try {
+            json = options.toJson().getAsJsonObject();
+        } catch (IOException e) {
+            throw new WebDriverException("Can't read Chrome options.", e);
+        }
+
+        ChromeOptions copy = new ChromeOptions();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            switch (entry.getKey()) {
+                case CHROME_BINARY:
+                    copy.setBinary(entry.getValue().getAsString());
+                    break;
+                case CHROME_ARGUMENTS:
+                    for (JsonElement argument : entry.getValue().getAsJsonArray())
+                        copy.addArguments(argument.getAsString());
+                    break;
+                case CHROME_EXTENSIONS:
+                    for (JsonElement extension : entry.getValue().getAsJsonArray())
+                        copy.addEncodedExtensions(extension.getAsString());
+                    break;
+                default:
+                    copy.setExperimentalOption(entry.getKey(), options.getExperimentalOption(entry.getKey()));
+                    break;
+            }
+        }
+
+        Map<Object, Object> mergedPreferences = new LinkedHashMap<Object, Object>(preferences);
+        Object userPreferences = options.getExperimentalOption(CHROME_PREFERENCES);
+        if (userPreferences instanceof Map)
+            mergedPreferences.putAll((Map<?, ?>) userPreferences);
+        copy.setExperimentalOption(CHROME_PREFERENCES, mergedPreferences);
+        return copy;
+    }
+
+    private static class AnimationsDisabler extends AbstractWebDriverEventListener {
+        @Override
+        public void afterNavigateTo(String url, WebDriver driver) {
+            disableAnimations(driver);
+        }
+
+        @Override
+        public void afterNavigateBack(WebDriver driver) {
+            disableAnimations(driver);
+        }
+
+        @Override
+        public void afterNavigateForward(WebDriver driver) {
+            disableAnimations(driver);
+        }
+
+        private void disableAnimations(WebDriver driver) {
+            if (!(driver instanceof JavascriptExecutor))
+                return;
+            try {
+                ((JavascriptExecutor) driver).executeScript(INJECT_STYLE_SCRIPT, NO_ANIMATIONS_STYLE);
+            } catch (WebDriverException ignored) {
+                // page without document (e.g. download or plain text) - nothing to disable
+            }
+        }
+    }
+}
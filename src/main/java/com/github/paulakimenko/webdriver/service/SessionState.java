@@ -0,0 +1,242 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of authenticated browser state: cookies, local and session storage of a page.
+ */
+public final class SessionState {
+    private static final int FORMAT_VERSION = 1;
+    private static final String LOCAL_STORAGE = "localStorage";
+    private static final String SESSION_STORAGE = "sessionStorage";
+    private static final String READ_STORAGE_SCRIPT =
+            "var storage = window[arguments[0]], result = {};"
+                    + "if (!storage) return result;"
+                    + "for (var i = 0; i < storage.length; i++) {"
+                    + "  var key = storage.key(i); result[key] = storage.getItem(key);"
+                    + "}"
+                    + "return result;";
+    private static final String WRITE_STORAGE_SCRIPT =
+            "var storage = window[arguments[0]];"
+                    + "if (!storage) return;"
+                    + "storage.clear();"
+                    + "for (var i = 0; i < arguments[1].length; i++) storage.setItem(arguments[1][i], arguments[2][i]);";
+
+    private final String url;
+    private final Set<Cookie> cookies;
+    private final Map<String, String> localStorage;
+    private final Map<String, String> sessionStorage;
+    private final long capturedAt;
+
+    /**
+     * Build session state model.
+     * @param url URL of page, where state has been captured
+     * @param cookies cookies of page
+     * @param localStorage local storage of page
+     * @param sessionStorage session storage of page
+     * @param capturedAt capture time in milliseconds
+     */
+    public SessionState(String url, Set<Cookie> cookies, Map<String, String> localStorage,
+                        Map<String, String> sessionStorage, long capturedAt) {
+        this.url = url;
+        this.cookies = Collections.unmodifiableSet(new HashSet<>(cookies));
+        this.localStorage = Collections.unmodifiableMap(new LinkedHashMap<>(localStorage));
+        this.sessionStorage = Collections.unmodifiableMap(new LinkedHashMap<>(sessionStorage));
+        this.capturedAt = capturedAt;
+    }
+
+    /**
+     * Get URL of page, where state has been captured.
+     * @return URL of page
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get captured cookies.
+     * @return captured cookies
+     */
+    public Set<Cookie> getCookies() {
+        return cookies;
+    }
+
+    /**
+     * Get captured local storage.
+     * @return captured local storage
+     */
+    public Map<String, String> getLocalStorage() {
+        return localStorage;
+    }
+
+    /**
+     * Get captured session storage.
+     * @return captured session storage
+     */
+    public Map<String, String> getSessionStorage() {
+        return sessionStorage;
+    }
+
+    /**
+     * Get capture time.
+     * @return capture time in milliseconds
+     */
+    public long getCapturedAt() {
+        return capturedAt;
+    }
+
+    /**
+     * Capture state of current page.
+     * @param driver WebDriver instance
+     * @param jsExecutor JavascriptExecutor of given WebDriver
+     * @return captured state
+     */
+    public static SessionState capture(WebDriver driver, JavascriptExecutor jsExecutor) {
+        return new SessionState(
+                driver.getCurrentUrl(),
+                driver.manage().getCookies(),
+                readStorage(jsExecutor, LOCAL_STORAGE),
+                readStorage(jsExecutor, SESSION_STORAGE),
+                System.currentTimeMillis()
+        );
+    }
+
+    /**
+     * Restore state: open captured page, replace its cookies and storages, and reload it.
+     * @param driver WebDriver instance
+     * @param jsExecutor JavascriptExecutor of given WebDriver
+     */
+    public void restore(WebDriver driver, JavascriptExecutor jsExecutor) {
+        driver.get(url);
+        WebDriver.Options options = driver.manage();
+        options.deleteAllCookies();
+        for (Cookie cookie : cookies)
+            options.addCookie(cookie);
+        writeStorage(jsExecutor, LOCAL_STORAGE, localStorage);
+        writeStorage(jsExecutor, SESSION_STORAGE, sessionStorage);
+        driver.navigate().refresh();
+    }
+
+    /**
+     * Write state in compact binary form.
+     * @param output data output
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeByte(FORMAT_VERSION);
+        output.writeLong(capturedAt);
+        writeString(output, url);
+        output.writeInt(cookies.size());
+        for (Cookie cookie : cookies) {
+            writeString(output, cookie.getName());
+            writeString(output, cookie.getValue());
+            writeString(output, cookie.getDomain());
+            writeString(output, cookie.getPath());
+            output.writeLong(cookie.getExpiry() == null ? -1 : cookie.getExpiry().getTime());
+            output.writeBoolean(cookie.isSecure());
+            output.writeBoolean(cookie.isHttpOnly());
+        }
+        writeMap(output, localStorage);
+        writeMap(output, sessionStorage);
+    }
+
+    /**
+     * Read state, which has been written with writeTo().
+     * @param input data input
+     * @return read state
+     * @throws IOException if an I/O error occurs, or format is unknown
+     */
+    public static SessionState readFrom(DataInput input) throws IOException {
+        int version = input.readByte();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unknown session state format : " + version);
+
+        long capturedAt = input.readLong();
+        String url = readString(input);
+        int cookiesCount = input.readInt();
+        Set<Cookie> cookies = new HashSet<>();
+        for (int i = 0; i < cookiesCount; i++) {
+            String name = readString(input);
+            String value = readString(input);
+            String domain = readString(input);
+            String path = readString(input);
+            long expiry = input.readLong();
+            boolean secure = input.readBoolean();
+            boolean httpOnly = input.readBoolean();
+            cookies.add(new Cookie(name, value, domain, path, expiry < 0 ? null : new Date(expiry), secure, httpOnly));
+        }
+        Map<String, String> localStorage = readMap(input);
+        Map<String, String> sessionStorage = readMap(input);
+        return new SessionState(url, cookies, localStorage, sessionStorage, capturedAt);
+    }
+
+    /*
+    Privates
+     */
+
+    private static Map<String, String> readStorage(JavascriptExecutor jsExecutor, String storageName) {
+        Map<String, String> storage = new LinkedHashMap<>();
+        Object result = jsExecutor.executeScript(READ_STORAGE_SCRIPT, storageName);
+        if (result instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet())
+                storage.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        return storage;
+    }
+
+    private static void writeStorage(JavascriptExecutor jsExecutor, String storageName, Map<String, String> storage) {
+        List<String> keys = new ArrayList<>(storage.keySet());
+        List<String> values = new ArrayList<>(storage.values());
+        jsExecutor.executeScript(WRITE_STORAGE_SCRIPT, storageName, keys, values);
+    }
+
+    private static void writeMap(DataOutput output, Map<String, String> map) throws IOException {
+        output.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(output, entry.getKey());
+            writeString(output, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInput input) throws IOException {
+        int size = input.readInt();
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++)
+            map.put(readString(input), readString(input));
+        return map;
+    }
+
+    private static void writeString(DataOutput output, String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of session states, shared by all threads of JVM.
+ * <p>
+ * States are kept in memory and, optionally, in store directory (one compressed binary file per key).
+ */
+public final class SessionStateCache {
+    private static final String FILE_EXTENSION = ".state";
+    private static final SessionStateCache IN_MEMORY = new SessionStateCache(null);
+    private static final ConcurrentMap<File, SessionStateCache> STORED = new ConcurrentHashMap<>();
+
+    private final File storeDirectory;
+    private final ConcurrentMap<String, SessionState> states = new ConcurrentHashMap<>();
+
+    private SessionStateCache(File storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    /**
+     * Get in-memory cache.
+     * @return in-memory cache
+     */
+    public static SessionStateCache getInstance() {
+        return IN_MEMORY;
+    }
+
+    /**
+     * Get cache, which is backed by given store directory.
+     * @param storeDirectory store directory, or null for in-memory cache
+     * @return cache for given store directory
+     */
+    public static SessionStateCache getInstance(File storeDirectory) {
+        if (storeDirectory == null)
+            return IN_MEMORY;
+
+        File key = storeDirectory.getAbsoluteFile();
+        SessionStateCache cache = STORED.get(key);
+        if (cache == null) {
+            SessionStateCache newCache = new SessionStateCache(key);
+            cache = STORED.putIfAbsent(key, newCache);
+            if (cache == null)
+                cache = newCache;
+        }
+        return cache;
+    }
+
+    /**
+     * Put state under given key.
+     * <p>
+     * Throws RuntimeException with "Can't store session state." if store directory is not writable.
+     * @param key user supplied key
+     * @param state session state
+     */
+    public void put(String key, SessionState state) {
+        states.put(key, state);
+        if (storeDirectory != null) {
+            try {
+                store(key, state);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't store session state.", e);
+            }
+        }
+    }
+
+    /**
+     * Get state, which is not older than given TTL.
+     * <p>
+     * Expired state is removed, unless it has been replaced by fresh state meanwhile.
+     * @param key user supplied key
+     * @param ttl time to live, or 0 if state never expires
+     * @param timeUnit time unit of TTL
+     * @return session state, or null if there is no (fresh) state
+     */
+    public SessionState get(String key, long ttl, TimeUnit timeUnit) {
+        SessionState state = states.get(key);
+        if (state == null && storeDirectory != null) {
+            state = load(key);
+            if (state != null)
+                states.putIfAbsent(key, state);
+        }
+        if (state != null && ttl > 0
+                && System.currentTimeMillis() - state.getCapturedAt() > timeUnit.toMillis(ttl)) {
+            expire(key, state);
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Remove state of given key.
+     * @param key user supplied key
+     */
+    public void invalidate(String key) {
+        states.remove(key);
+        if (storeDirectory != null)
+            getFile(key).delete();
+    }
+
+    /*
+    Privates
+     */
+
+    private void store(String key, SessionState state) throws IOException {
+        if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs() && !storeDirectory.isDirectory())
+            throw new IOException("Can't create directory " + storeDirectory);
+
+        File tempFile = new File(storeDirectory, UUID.randomUUID() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))) {
+            state.writeTo(output);
+        }
+        Files.move(tempFile.toPath(), getFile(key).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void expire(String key, SessionState state) {
+        states.remove(key, state);
+        if (storeDirectory == null)
+            return;
+
+        File file = getFile(key);
+        try (DataInputStream input = new DataInputStream(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+            // skip format version
+            input.readByte();
+            if (input.readLong() != state.getCapturedAt())
+                return;
+        } catch (IOException e) {
+            // file has been removed or replaced meanwhile
+            return;
+        }
+        file.delete();
+    }
+
+    private SessionState load(String key) {
+        File file = getFile(key);
+        if (!file.isFile())
+            return null;
+
+        try (DataInputStream input = new DataInputStream(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+            return SessionState.readFrom(input);
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(storeDirectory, Hashing.sha1().hashString(key, StandardCharsets.UTF_8) + FILE_EXTENSION);
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.paulakimenko.webdriver.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter, which is striped by thread to avoid contention of concurrent updates.
+ * <p>
+ * Stripes are padded to separate cache lines. Sum is not an atomic snapshot.
+ */
+final class StripedCounter {
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripesCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long delta) {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++)
+            cells.set(i * PADDING, 0);
+    }
+
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1));
+    }
+
+    static int stripes() {
+        return STRIPES;
+    }
+
+    private static int stripesCount() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2)
+            stripes <<= 1;
+        return stripes;
+    }
+}
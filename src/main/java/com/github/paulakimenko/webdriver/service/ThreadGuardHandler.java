@@ -0,0 +1,80 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Thread guard of WebDriver, like org.openqa.selenium.support.ThreadGuard, but with transferable ownership,
+ * so WDServiceProvider.terminateAll() could quit guarded driver (with all its wrappers) in parallel.
+ */
+final class ThreadGuardHandler implements InvocationHandler {
+    private final WebDriver driver;
+    private volatile Thread owner;
+
+    private ThreadGuardHandler(WebDriver driver) {
+        this.driver = driver;
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * Protect driver, which will be owned by current thread.
+     * @param driver WebDriver to protect
+     * @return protected WebDriver
+     */
+    static WebDriver protect(WebDriver driver) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        for (Class<?> current = driver.getClass(); current != null; current = current.getSuperclass()) {
+            for (Class<?> implemented : current.getInterfaces()) {
+                if (Modifier.isPublic(implemented.getModifiers()))
+                    interfaces.add(implemented);
+            }
+        }
+        interfaces.add(WebDriver.class);
+        return (WebDriver) Proxy.newProxyInstance(ThreadGuardHandler.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[interfaces.size()]), new ThreadGuardHandler(driver));
+    }
+
+    /**
+     * Get guard of protected driver.
+     * @param driver protected WebDriver
+     * @return guard, or null if driver is not protected
+     */
+    static ThreadGuardHandler of(WebDriver driver) {
+        if (driver != null && Proxy.isProxyClass(driver.getClass())
+                && Proxy.getInvocationHandler(driver) instanceof ThreadGuardHandler)
+            return (ThreadGuardHandler) Proxy.getInvocationHandler(driver);
+        return null;
+    }
+
+    /**
+     * Hand protected driver over to current thread. Previous owner should not use it anymore.
+     */
+    void takeOwnership() {
+        owner = Thread.currentThread();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Thread current = Thread.currentThread();
+        Thread currentOwner = owner;
+        if (current != currentOwner) {
+            throw new WebDriverException(String.format("Thread safety error; this instance of WebDriver is owned by "
+                            + "thread %s (id %d) and is being accessed by thread %s (id %d). This is not permitted "
+                            + "and *will* cause undefined behaviour.",
+                    currentOwner.getName(), currentOwner.getId(), current.getName(), current.getId()));
+        }
+        try {
+            return method.invoke(driver, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
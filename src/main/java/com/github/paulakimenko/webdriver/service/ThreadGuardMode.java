@@ -0,0 +1,29 @@
+package com.github.paulakimenko.webdriver.service;
+
+/**
+ * Modes of ThreadGuard protection of Remote WebDriver.
+ * <p>
+ * ON protects every Remote WebDriver (checks thread on every command).
+ * <p>
+ * OFF never protects Remote WebDriver.
+ * <p>
+ * DEBUG protects Remote WebDriver only if assertions are enabled (-ea).
+ */
+public enum ThreadGuardMode {
+    ON, OFF, DEBUG;
+
+    /**
+     * Is WebDriver protected in this mode.
+     * @return true, if WebDriver should be protected with ThreadGuard
+     */
+    boolean isEnabled() {
+        switch (this) {
+            case ON:
+                return true;
+            case DEBUG:
+                return ThreadGuardMode.class.desiredAssertionStatus();
+            default:
+                return false;
+        }
+    }
+}
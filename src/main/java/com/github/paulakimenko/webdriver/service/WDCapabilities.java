@@ -2,7 +2,9 @@ package com.github.paulakimenko.webdriver.service;
 
 import org.openqa.selenium.Capabilities;
 
+import java.io.File;
 import java.net.URL;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -59,4 +61,81 @@ public interface WDCapabilities extends Capabilities {
      * @return default WebDriver browser window properties
      */
     Window getWindow();
+
+    /**
+     * Get performance profile which is applied to WebDriver on initialization.
+     * @return performance profile
+     */
+    PerformanceProfile getPerformanceProfile();
+
+    /**
+     * Get regular expression of resource URLs which are blocked by FAST performance profile.
+     * Applies to PhantomJS only, other browsers block resources by preferences.
+     * @return blocked resource URLs pattern
+     */
+    String getBlockedUrlPattern();
+
+    /**
+     * Is cache of Firefox profile templates used.
+     * <p>
+     * Cache is not used, if Firefox profile is given explicitly.
+     * @return true, if Firefox profiles are built from cached templates
+     */
+    boolean isFirefoxProfileCacheEnabled();
+
+    /**
+     * Get Firefox extensions which are installed into cached Firefox profile.
+     * @return Firefox extension files
+     */
+    List<File> getFirefoxExtensions();
+
+    /**
+     * Get key of session state, which is restored on initialization.
+     * @return session state key, or null if session state is not restored
+     */
+    String getSessionState();
+
+    /**
+     * Get session state time to live.
+     * @return session state time to live, or 0 if session state never expires
+     */
+    long getSessionStateTtl();
+
+    /**
+     * Get directory where session states are stored.
+     * @return session state store directory, or null if session states are kept in memory only
+     */
+    File getSessionStateStore();
+
+    /**
+     * Get ThreadGuard mode of Remote WebDriver.
+     * @return ThreadGuard mode
+     */
+    ThreadGuardMode getThreadGuardMode();
+
+    /**
+     * Get loopback port of WDServiceBroker, which leases pooled sessions to this JVM.
+     * @return broker port, or 0 if sessions are not brokered machine-wide
+     */
+    int getBrokerPort();
+
+    /**
+     * Get maximum wait for session of WDServiceBroker.
+     * @return broker lease timeout (0 to wait forever)
+     */
+    long getBrokerLeaseTimeout();
+
+    /**
+     * Is session started in lightweight (in-process HtmlUnitDriver) mode, with escalation to real browser.
+     * @return true if lightweight mode is enabled
+     */
+    boolean isLightweight();
+
+    /**
+     * Get period, for which DOM and network should be quiet to consider page ready.
+     * <p>
+     * Used in WDService.waitForReady() method.
+     * @return quiet period in milliseconds
+     */
+    long getReadyQuietPeriod();
 }
@@ -0,0 +1,445 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.remote.CapabilityType;
+import org.testng.ITestContext;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Resolves capabilities from layered sources, with precedence (lowest first):
+ * defaults, profile (properties file or classpath resource), system properties, environment variables,
+ * TestNG suite parameters, overrides.
+ * <p>
+ * Precedence doesn't depend on order of with*() calls. Every layer has cheap fingerprint (file modification time,
+ * snapshot of system properties, suite parameters, etc.), and resolved capabilities are memoized per
+ * combination of fingerprints, so they are rebuilt only when some source changes.
+ * <p>
+ * System properties and environment variables are taken only for known capability names
+ * (CapabilityType, WDCapabilityType) and, for system properties, for "webdriver." prefixed names.
+ * Environment variables are taken only with "WEBDRIVER_" prefix, so generic ones (PLATFORM, VERSION, PROXY)
+ * don't override capabilities.
+ * <p>
+ * Resolved capabilities are shared by all threads and are read-only: setCapability() and merge() throw
+ * UnsupportedOperationException. Copy them with new WDDesiredCapabilities().merge(resolved) to modify.
+ * <p>
+ * Environment variables without "WEBDRIVER_" prefix are matched to capability names without "webdriver." prefix
+ * case-insensitively, ignoring '_' and '.' (e.g. WEBDRIVER_SERVICE_IMPLICITLY_WAIT is webdriver.service.implicitlyWait,
+ * WEBDRIVER_BROWSER_NAME is browserName).
+ */
+public final class WDCapabilitiesResolver {
+    private static final int MAX_RESOLVED = 64;
+    private static final Cache<List<Object>, WDCapabilities> resolved =
+            CacheBuilder.newBuilder().maximumSize(MAX_RESOLVED).build();
+    private static final Object DEFAULTS_FINGERPRINT = "defaults";
+    private static final String WEBDRIVER_PROPERTY_PREFIX = "webdriver.";
+    private static final String WEBDRIVER_VARIABLE_PREFIX = "WEBDRIVER_";
+    private static final Set<String> CAPABILITY_NAMES = getCapabilityNames();
+
+    private Layer profile;
+    private boolean systemProperties;
+    private boolean environment;
+    private Layer suiteParameters;
+    private Map<String, String> overrides = ImmutableMap.of();
+
+    /**
+     * Set profile from properties file.
+     * @param file properties file
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withProfile(File file) {
+        profile = new FileLayer(file);
+        return this;
+    }
+
+    /**
+     * Set profile from classpath properties resource.
+     * @param resourceName resource name (e.g. "webdriver.properties")
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withProfile(String resourceName) {
+        profile = new ResourceLayer(resourceName);
+        return this;
+    }
+
+    /**
+     * Use system properties layer.
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withSystemProperties() {
+        systemProperties = true;
+        return this;
+    }
+
+    /**
+     * Use environment variables layer.
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withEnvironment() {
+        environment = true;
+        return this;
+    }
+
+    /**
+     * Use parameters of TestNG suite.
+     * @param context given context
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withSuiteParameters(ITestContext context) {
+        suiteParameters = new MapLayer(context.getSuite().getXmlSuite().getAllParameters());
+        return this;
+    }
+
+    /**
+     * Set per-test overrides, which have the highest precedence.
+     * @param overrides capabilities
+     * @return this resolver
+     */
+    public WDCapabilitiesResolver withOverrides(Map<String, String> overrides) {
+        this.overrides = ImmutableMap.copyOf(overrides);
+        return this;
+    }
+
+    /**
+     * Resolve capabilities.
+     * <p>
+     * Throws RuntimeException with "Can't read capabilities profile." if profile can't be read.
+     * @return shared read-only capabilities
+     */
+    public WDCapabilities resolve() {
+        List<Layer> layers = getLayers();
+        List<Object> fingerprints = getFingerprints(layers);
+        WDCapabilities capabilities = resolved.getIfPresent(fingerprints);
+        if (capabilities != null)
+            return capabilities;
+
+        Map<String, String> merged = new LinkedHashMap<>();
+        for (Layer layer : layers)
+            merged.putAll(layer.load());
+        capabilities = new ResolvedCapabilities(merged);
+
+        // source could be changed during loading, such result is not memoized
+        if (fingerprints.equals(getFingerprints(layers)))
+            resolved.put(fingerprints, capabilities);
+        return capabilities;
+    }
+
+    /**
+     * Forget all memoized capabilities.
+     */
+    public static void invalidateAll() {
+        resolved.invalidateAll();
+    }
+
+    /*
+    Privates
+     */
+
+    private List<Layer> getLayers() {
+        List<Layer> layers = new ArrayList<>();
+        if (profile != null)
+            layers.add(profile);
+        if (systemProperties)
+            layers.add(SystemPropertiesLayer.INSTANCE);
+        if (environment)
+            layers.add(EnvironmentLayer.INSTANCE);
+        if (suiteParameters != null)
+            layers.add(suiteParameters);
+        if (!overrides.isEmpty())
+            layers.add(new MapLayer(overrides));
+        return layers;
+    }
+
+    private static List<Object> getFingerprints(List<Layer> layers) {
+        List<Object> fingerprints = new ArrayList<>(layers.size() + 1);
+        fingerprints.add(DEFAULTS_FINGERPRINT);
+        for (Layer layer : layers)
+            fingerprints.add(layer.fingerprint());
+        return fingerprints;
+    }
+
+    private static Set<String> getCapabilityNames() {
+        Set<String> names = new HashSet<>();
+        for (Class<?> type : Arrays.<Class<?>>asList(CapabilityType.class, WDCapabilityType.class)) {
+            for (Field field : type.getFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) || field.getType() != String.class)
+                    continue;
+                try {
+                    names.add((String) field.get(null));
+                } catch (IllegalAccessException ignored) {}
+            }
+        }
+        return ImmutableSet.copyOf(names);
+    }
+
+    private static Map<String, String> toMap(Properties properties) {
+        Map<String, String> map = new HashMap<>();
+        for (String key : properties.stringPropertyNames())
+            map.put(key, properties.getProperty(key));
+        return map;
+    }
+
+    private static Map<String, String> readProfile(InputStream input) {
+        try (InputStream stream = input) {
+            Properties properties = new Properties();
+            properties.load(stream);
+            return toMap(properties);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't read capabilities profile.", e);
+        }
+    }
+
+    /**
+     * Source of capabilities.
+     */
+    private interface Layer {
+        /**
+         * Get value, which changes when source changes.
+         */
+        Object fingerprint();
+
+        Map<String, String> load();
+    }
+
+    private static final class FileLayer implements Layer {
+        private final File file;
+
+        FileLayer(File file) {
+            this.file = file.getAbsoluteFile();
+        }
+
+        @Override
+        public Object fingerprint() {
+            return Arrays.asList(file, file.lastModified(), file.length());
+        }
+
+        @Override
+        public Map<String, String> load() {
+            if (!file.isFile())
+                return ImmutableMap.of();
+            try {
+                return readProfile(new FileInputStream(file));
+            } catch (IOException e) {
+                throw new RuntimeException("Can't read capabilities profile.", e);
+            }
+        }
+    }
+
+    /**
+     * Resource is looked up once per class loader. Resource in directory is fingerprinted by modification time
+     * of its file, resource in jar is not expected to change.
+     */
+    private static final class ResourceLayer implements Layer {
+        private static final String FILE_PROTOCOL = "file";
+
+        private final String resourceName;
+        private final Map<ClassLoader, URL> resources = new WeakHashMap<>();
+
+        ResourceLayer(String resourceName) {
+            this.resourceName = resourceName;
+        }
+
+        @Override
+        public Object fingerprint() {
+            URL resource = getResource();
+            if (resource == null)
+                return Arrays.asList(resourceName, null);
+            if (!FILE_PROTOCOL.equals(resource.getProtocol()))
+                return resource.toString();
+            try {
+                File file = new File(resource.toURI());
+                return Arrays.asList(resource.toString(), file.lastModified(), file.length());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return Arrays.asList(resource.toString(), -1L);
+            }
+        }
+
+        @Override
+        public Map<String, String> load() {
+            URL resource = getResource();
+            if (resource == null)
+                return ImmutableMap.of();
+            try {
+                return readProfile(resource.openStream());
+            } catch (IOException e) {
+                throw new RuntimeException("Can't read capabilities profile.", e);
+            }
+        }
+
+        private URL getResource() {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null)
+                classLoader = WDCapabilitiesResolver.class.getClassLoader();
+            synchronized (resources) {
+                URL resource = resources.get(classLoader);
+                if (resource == null) {
+                    // missing resource is looked up again, it could appear later
+                    resource = classLoader.getResource(resourceName);
+                    if (resource != null)
+                        resources.put(classLoader, resource);
+                }
+                return resource;
+            }
+        }
+    }
+
+    /**
+     * Snapshot of relevant system properties is its own fingerprint.
+     */
+    private static final class SystemPropertiesLayer implements Layer {
+        private static final SystemPropertiesLayer INSTANCE = new SystemPropertiesLayer();
+
+        @Override
+        public Object fingerprint() {
+            return load();
+        }
+
+        @Override
+        public Map<String, String> load() {
+            Properties properties = System.getProperties();
+            Map<String, String> snapshot = new HashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(WEBDRIVER_PROPERTY_PREFIX) || CAPABILITY_NAMES.contains(key)) {
+                    String value = properties.getProperty(key);
+                    if (value != null)
+                        snapshot.put(key, value);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Environment of JVM doesn't change, so it is parsed only once.
+     */
+    static final class EnvironmentLayer implements Layer {
+        private static final EnvironmentLayer INSTANCE = new EnvironmentLayer(System.getenv());
+
+        private final Map<String, String> capabilities;
+
+        EnvironmentLayer(Map<String, String> environment) {
+            Map<String, String> knownKeys = new HashMap<>();
+            for (String key : CAPABILITY_NAMES) {
+                knownKeys.put(normalize(key.startsWith(WEBDRIVER_PROPERTY_PREFIX)
+                        ? key.substring(WEBDRIVER_PROPERTY_PREFIX.length())
+                        : key), key);
+            }
+
+            Map<String, String> found = new HashMap<>();
+            for (Map.Entry<String, String> variable : environment.entrySet()) {
+                if (!variable.getKey().startsWith(WEBDRIVER_VARIABLE_PREFIX))
+                    continue;
+                String key = knownKeys.get(normalize(variable.getKey().substring(WEBDRIVER_VARIABLE_PREFIX.length())));
+                if (key != null)
+                    found.put(key, variable.getValue());
+            }
+            capabilities = ImmutableMap.copyOf(found);
+        }
+
+        @Override
+        public Object fingerprint() {
+            return "environment";
+        }
+
+        @Override
+        public Map<String, String> load() {
+            return capabilities;
+        }
+
+        private static String normalize(String key) {
+            return key.replace("_", "").replace(".", "").toLowerCase();
+        }
+    }
+
+    private static final class MapLayer implements Layer {
+        private final Map<String, String> map;
+
+        MapLayer(Map<String, String> map) {
+            this.map = ImmutableMap.copyOf(map);
+        }
+
+        @Override
+        public Object fingerprint() {
+            return map;
+        }
+
+        @Override
+        public Map<String, String> load() {
+            return map;
+        }
+    }
+
+    /**
+     * Read-only capabilities, which are shared by all threads.
+     */
+    private static final class ResolvedCapabilities extends WDDesiredCapabilities {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean frozen;
+
+        ResolvedCapabilities(Map<String, String> merged) {
+            super();
+            super.merge(WDDesiredCapabilities.getDefault());
+            super.merge(new WDDesiredCapabilities(merged));
+            frozen = true;
+        }
+
+        @Override
+        public void setCapability(String key, Object value) {
+            checkNotFrozen();
+            super.setCapability(key, value);
+        }
+
+        @Override
+        public void setCapability(String capabilityName, boolean value) {
+            checkNotFrozen();
+            super.setCapability(capabilityName, value);
+        }
+
+        @Override
+        public void setCapability(String capabilityName, String value) {
+            checkNotFrozen();
+            super.setCapability(capabilityName, value);
+        }
+
+        @Override
+        public void setCapability(String capabilityName, Platform value) {
+            checkNotFrozen();
+            super.setCapability(capabilityName, value);
+        }
+
+        @Override
+        public WDDesiredCapabilities merge(Capabilities capabilities) {
+            checkNotFrozen();
+            return super.merge(capabilities);
+        }
+
+        private void checkNotFrozen() {
+            if (frozen)
+                throw new UnsupportedOperationException(
+                        "Resolved capabilities are shared and read-only. Copy them to modify.");
+        }
+    }
+}
@@ -16,4 +16,16 @@ public final class WDCapabilityType {
     public static final String SCRIPT_TIMEOUT = WEB_DRIVER_FACTORY + "scriptTimeout";
     public static final String FLUENT_WAIT_TIMEOUT = WEB_DRIVER_FACTORY + "fluentWaitTimeout";
     public static final String WINDOW = WEB_DRIVER_FACTORY + "window";
+    public static final String PERFORMANCE_PROFILE = WEB_DRIVER_FACTORY + "performanceProfile";
+    public static final String BLOCKED_URL_PATTERN = WEB_DRIVER_FACTORY + "blockedUrlPattern";
+    public static final String FIREFOX_PROFILE_CACHE = WEB_DRIVER_FACTORY + "firefoxProfileCache";
+    public static final String FIREFOX_EXTENSIONS = WEB_DRIVER_FACTORY + "firefoxExtensions";
+    public static final String SESSION_STATE = WEB_DRIVER_FACTORY + "sessionState";
+    public static final String SESSION_STATE_TTL = WEB_DRIVER_FACTORY + "sessionStateTtl";
+    public static final String SESSION_STATE_STORE = WEB_DRIVER_FACTORY + "sessionStateStore";
+    public static final String THREAD_GUARD = WEB_DRIVER_FACTORY + "threadGuard";
+    public static final String BROKER_PORT = WEB_DRIVER_FACTORY + "brokerPort";
+    public static final String BROKER_LEASE_TIMEOUT = WEB_DRIVER_FACTORY + "brokerLeaseTimeout";
+    public static final String LIGHTWEIGHT = WEB_DRIVER_FACTORY + "lightweight";
+    public static final String READY_QUIET_PERIOD = WEB_DRIVER_FACTORY + "readyQuietPeriod";
 }
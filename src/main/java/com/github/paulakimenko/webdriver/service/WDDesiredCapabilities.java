@@ -1,5 +1,7 @@
 package com.github.paulakimenko.webdriver.service;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Sets;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.Platform;
@@ -8,9 +10,12 @@ import org.openqa.selenium.remote.DesiredCapabilities;
 import org.testng.ISuite;
 import org.testng.ITestContext;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -22,6 +27,9 @@ import java.util.concurrent.TimeUnit;
  * Used for WDService.
  */
 public class WDDesiredCapabilities extends DesiredCapabilities implements WDCapabilities {
+    private static final long DEFAULT_BROKER_LEASE_TIMEOUT = 600;
+    private static final long DEFAULT_READY_QUIET_PERIOD = 500;
+
     public WDDesiredCapabilities(String browser, String version, Platform platform) {
         super(browser, version, platform);
     }
@@ -57,7 +65,8 @@ public class WDDesiredCapabilities extends DesiredCapabilities implements WDCapa
                 "ignoreZoomSetting", "enablePersistentHover", "enableElementCacheCleanup", "requireWindowFocus",
                 "ie.forceCreateProcessApi", "ie.usePerProcessProxy", "ie.ensureCleanSession", "silent",
                 "ie.setProxyByServer", "cleanSession", "skipExtensionInstallation", "webdriver_accept_untrusted_certs",
-                "webdriver_assume_untrusted_issuer"
+                "webdriver_assume_untrusted_issuer", WDCapabilityType.FIREFOX_PROFILE_CACHE,
+                WDCapabilityType.LIGHTWEIGHT
         );
         Set<String> intValueKeys = Sets.newHashSet(
                 "elementScrollBehavior", "maxInstances", "opera.display", "opera.port", "browserAttachTimeout",
@@ -157,6 +166,132 @@ public class WDDesiredCapabilities extends DesiredCapabilities implements WDCapa
         return Window.valueOf(String.valueOf(capability == null ? "" : capability));
     }
 
+    public void setPerformanceProfile(PerformanceProfile performanceProfile) {
+        setCapability(WDCapabilityType.PERFORMANCE_PROFILE, performanceProfile.toString());
+    }
+
+    @Override
+    public PerformanceProfile getPerformanceProfile() {
+        Object capability = getCapability(WDCapabilityType.PERFORMANCE_PROFILE);
+        return capability == null
+                ? PerformanceProfile.DEFAULT
+                : PerformanceProfile.valueOf(String.valueOf(capability).toUpperCase());
+    }
+
+    public void setBlockedUrlPattern(String blockedUrlPattern) {
+        setCapability(WDCapabilityType.BLOCKED_URL_PATTERN, blockedUrlPattern);
+    }
+
+    @Override
+    public String getBlockedUrlPattern() {
+        Object capability = getCapability(WDCapabilityType.BLOCKED_URL_PATTERN);
+        return capability == null ? PerformanceProfiles.DEFAULT_BLOCKED_URL_PATTERN : String.valueOf(capability);
+    }
+
+    public void setFirefoxProfileCacheEnabled(boolean firefoxProfileCacheEnabled) {
+        setCapability(WDCapabilityType.FIREFOX_PROFILE_CACHE, firefoxProfileCacheEnabled);
+    }
+
+    @Override
+    public boolean isFirefoxProfileCacheEnabled() {
+        Object capability = getCapability(WDCapabilityType.FIREFOX_PROFILE_CACHE);
+        return capability == null || Boolean.valueOf(String.valueOf(capability));
+    }
+
+    public void setFirefoxExtensions(List<File> firefoxExtensions) {
+        setCapability(WDCapabilityType.FIREFOX_EXTENSIONS, Joiner.on(',').join(firefoxExtensions));
+    }
+
+    @Override
+    public List<File> getFirefoxExtensions() {
+        List<File> extensions = new ArrayList<>();
+        Object capability = getCapability(WDCapabilityType.FIREFOX_EXTENSIONS);
+        if (capability == null)
+            return extensions;
+        for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(String.valueOf(capability)))
+            extensions.add(new File(path));
+        return extensions;
+    }
+
+    public void setSessionState(String sessionState) {
+        setCapability(WDCapabilityType.SESSION_STATE, sessionState);
+    }
+
+    @Override
+    public String getSessionState() {
+        Object capability = getCapability(WDCapabilityType.SESSION_STATE);
+        return capability == null ? null : String.valueOf(capability);
+    }
+
+    public void setSessionStateTtl(long sessionStateTtl) {
+        setCapability(WDCapabilityType.SESSION_STATE_TTL, String.valueOf(sessionStateTtl));
+    }
+
+    @Override
+    public long getSessionStateTtl() {
+        return getDigitsFromString(String.valueOf(getCapability(WDCapabilityType.SESSION_STATE_TTL)));
+    }
+
+    public void setSessionStateStore(File sessionStateStore) {
+        setCapability(WDCapabilityType.SESSION_STATE_STORE, sessionStateStore.getAbsolutePath());
+    }
+
+    @Override
+    public File getSessionStateStore() {
+        Object capability = getCapability(WDCapabilityType.SESSION_STATE_STORE);
+        return capability == null ? null : new File(String.valueOf(capability));
+    }
+
+    public void setThreadGuardMode(ThreadGuardMode threadGuardMode) {
+        setCapability(WDCapabilityType.THREAD_GUARD, threadGuardMode.toString());
+    }
+
+    @Override
+    public ThreadGuardMode getThreadGuardMode() {
+        Object capability = getCapability(WDCapabilityType.THREAD_GUARD);
+        return capability == null
+                ? ThreadGuardMode.ON
+                : ThreadGuardMode.valueOf(String.valueOf(capability).toUpperCase());
+    }
+
+    public void setBrokerPort(int brokerPort) {
+        setCapability(WDCapabilityType.BROKER_PORT, String.valueOf(brokerPort));
+    }
+
+    @Override
+    public int getBrokerPort() {
+        return (int) getDigitsFromString(String.valueOf(getCapability(WDCapabilityType.BROKER_PORT)));
+    }
+
+    public void setBrokerLeaseTimeout(long brokerLeaseTimeout) {
+        setCapability(WDCapabilityType.BROKER_LEASE_TIMEOUT, String.valueOf(brokerLeaseTimeout));
+    }
+
+    @Override
+    public long getBrokerLeaseTimeout() {
+        Object capability = getCapability(WDCapabilityType.BROKER_LEASE_TIMEOUT);
+        return capability == null ? DEFAULT_BROKER_LEASE_TIMEOUT : getDigitsFromString(String.valueOf(capability));
+    }
+
+    public void setLightweight(boolean lightweight) {
+        setCapability(WDCapabilityType.LIGHTWEIGHT, lightweight);
+    }
+
+    @Override
+    public boolean isLightweight() {
+        return is(WDCapabilityType.LIGHTWEIGHT);
+    }
+
+    public void setReadyQuietPeriod(long readyQuietPeriod) {
+        setCapability(WDCapabilityType.READY_QUIET_PERIOD, String.valueOf(readyQuietPeriod));
+    }
+
+    @Override
+    public long getReadyQuietPeriod() {
+        Object capability = getCapability(WDCapabilityType.READY_QUIET_PERIOD);
+        return capability == null ? DEFAULT_READY_QUIET_PERIOD : getDigitsFromString(String.valueOf(capability));
+    }
+
     @Override
     public WDDesiredCapabilities merge(Capabilities capabilities) {
         super.merge(capabilities);
@@ -177,6 +312,25 @@ public class WDDesiredCapabilities extends DesiredCapabilities implements WDCapa
         wdCapabilities.setCapability(WDCapabilityType.SCRIPT_TIMEOUT, "10");
         wdCapabilities.setCapability(WDCapabilityType.FLUENT_WAIT_TIMEOUT, "10");
         wdCapabilities.setCapability(WDCapabilityType.WINDOW, "default");
+        wdCapabilities.setCapability(WDCapabilityType.PERFORMANCE_PROFILE, "default");
+        wdCapabilities.setCapability(WDCapabilityType.FIREFOX_PROFILE_CACHE, true);
+        wdCapabilities.setCapability(WDCapabilityType.SESSION_STATE_TTL, "1800");
+        wdCapabilities.setCapability(WDCapabilityType.THREAD_GUARD, "on");
+        wdCapabilities.setCapability(WDCapabilityType.BROKER_LEASE_TIMEOUT, String.valueOf(DEFAULT_BROKER_LEASE_TIMEOUT));
+        wdCapabilities.setCapability(WDCapabilityType.READY_QUIET_PERIOD, String.valueOf(DEFAULT_READY_QUIET_PERIOD));
+        return wdCapabilities;
+    }
+
+    /**
+     * Get default capabilities with FAST performance profile.
+     * <p>
+     * Images, fonts and media are blocked, page load strategy is eager where supported
+     * and animations are disabled after navigation.
+     * @return default capabilities with FAST performance profile
+     */
+    public static WDDesiredCapabilities getFast() {
+        WDDesiredCapabilities wdCapabilities = getDefault();
+        wdCapabilities.setPerformanceProfile(PerformanceProfile.FAST);
         return wdCapabilities;
     }
 
@@ -0,0 +1,261 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.openqa.selenium.Platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+/**
+ * Runs the same test body for every combination of capabilities axes (browser, version, window, platform).
+ * <p>
+ * Cells are executed on bounded thread pool, each cell has its own WebDriver instance.
+ */
+public class WDMatrixRunner {
+    private static final String MATRIX_SESSION = "matrix";
+
+    private final WDCapabilities baseCapabilities;
+    private final List<String> browsers = new ArrayList<>();
+    private final List<String> versions = new ArrayList<>();
+    private final List<Window> windows = new ArrayList<>();
+    private final List<Platform> platforms = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Build matrix runner.
+     * @param baseCapabilities capabilities, which are used for axes without values
+     */
+    public WDMatrixRunner(WDCapabilities baseCapabilities) {
+        this.baseCapabilities = baseCapabilities;
+    }
+
+    /**
+     * Set browser axis.
+     * @param browsers browser names (see org.openqa.selenium.remote.BrowserType)
+     * @return this runner
+     */
+    public WDMatrixRunner browsers(String... browsers) {
+        this.browsers.addAll(Arrays.asList(browsers));
+        return this;
+    }
+
+    /**
+     * Set browser version axis.
+     * @param versions browser versions
+     * @return this runner
+     */
+    public WDMatrixRunner versions(String... versions) {
+        this.versions.addAll(Arrays.asList(versions));
+        return this;
+    }
+
+    /**
+     * Set browser window axis.
+     * @param windows browser windows
+     * @return this runner
+     */
+    public WDMatrixRunner windows(Window... windows) {
+        this.windows.addAll(Arrays.asList(windows));
+        return this;
+    }
+
+    /**
+     * Set platform axis.
+     * @param platforms platforms
+     * @return this runner
+     */
+    public WDMatrixRunner platforms(Platform... platforms) {
+        this.platforms.addAll(Arrays.asList(platforms));
+        return this;
+    }
+
+    /**
+     * Set maximum number of cells, which are executed at the same time.
+     * <p>
+     * Number of available processors is used by default.
+     * @param threads maximum number of concurrent cells
+     * @return this runner
+     */
+    public WDMatrixRunner threads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads count should be positive.");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Expand axes into capabilities of every cell.
+     * @return capabilities of cells
+     */
+    public List<WDCapabilities> expand() {
+        List<WDCapabilities> cells = new ArrayList<>();
+        for (String browser : orBase(browsers, baseCapabilities.getBrowserName()))
+            for (String version : orBase(versions, baseCapabilities.getVersion()))
+                for (Window window : orBase(windows, baseCapabilities.getWindow()))
+                    for (Platform platform : orBase(platforms, baseCapabilities.getPlatform())) {
+                        WDDesiredCapabilities cell = new WDDesiredCapabilities().merge(baseCapabilities);
+                        cell.setBrowserName(browser);
+                        cell.setVersion(version);
+                        cell.setWindow(window);
+                        cell.setPlatform(platform);
+                        cells.add(cell);
+                    }
+        return cells;
+    }
+
+    /**
+     * Run test body for every cell and wait for completion.
+     * @param task test body
+     * @return results of cells in expansion order
+     */
+    public List<Result> run(final Task task) {
+        List<WDCapabilities> cells = expand();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, cells.size())),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("webdriver-matrix-%d").build());
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final WDCapabilities cell : cells) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return runCell(cell, task);
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(getUninterruptibly(future));
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Matrix cell has failed unexpectedly.", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+    Privates
+     */
+
+    private static Result runCell(WDCapabilities cell, Task task) {
+        WDService service = WDServiceProvider.getInstance(MATRIX_SESSION);
+        service.setCapabilities(cell);
+        long initTime = 0;
+        long runTime = 0;
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            service.init();
+            initTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            task.run(service);
+            runTime = System.nanoTime() - start;
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            try {
+                if (service.getDriver() != null)
+                    service.terminate();
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+            }
+            WDServiceProvider.removeInstance(MATRIX_SESSION);
+        }
+        return new Result(cell, initTime, runTime, failure);
+    }
+
+    private static <T> List<T> orBase(List<T> axis, T baseValue) {
+        return axis.isEmpty() ? Collections.singletonList(baseValue) : axis;
+    }
+
+    /**
+     * Test body, which is executed for every cell.
+     */
+    public interface Task {
+        /**
+         * Run test body.
+         * @param service initialized service of cell
+         * @throws Exception any failure of test body
+         */
+        void run(WDService service) throws Exception;
+    }
+
+    /**
+     * Result of one matrix cell.
+     */
+    public static final class Result {
+        private final WDCapabilities capabilities;
+        private final long initTime;
+        private final long runTime;
+        private final Throwable failure;
+
+        Result(WDCapabilities capabilities, long initTime, long runTime, Throwable failure) {
+            this.capabilities = capabilities;
+            this.initTime = initTime;
+            this.runTime = runTime;
+            this.failure = failure;
+        }
+
+        /**
+         * Get capabilities of cell.
+         * @return capabilities of cell
+         */
+        public WDCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        /**
+         * Get WebDriver initialization time.
+         * @return initialization time in nanoseconds
+         */
+        public long getInitTime() {
+            return initTime;
+        }
+
+        /**
+         * Get test body execution time.
+         * @return execution time in nanoseconds
+         */
+        public long getRunTime() {
+            return runTime;
+        }
+
+        /**
+         * Get failure of cell.
+         * @return failure, or null if cell has passed
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Is cell passed.
+         * @return true, if cell has passed
+         */
+        public boolean isPassed() {
+            return failure == null;
+        }
+
+        @Override
+        public String toString() {
+            return capabilities.getBrowserName() + " " + capabilities.getVersion()
+                    + " " + capabilities.getPlatform() + " " + capabilities.getWindow()
+                    + " : " + (isPassed() ? "passed" : "failed (" + failure + ")")
+                    + ", init " + initTime / 1000000 + " ms, run " + runTime / 1000000 + " ms";
+        }
+    }
+}
@@ -11,6 +11,10 @@ import org.openqa.selenium.support.ui.WebDriverWait;
 public interface WDService {
     /**
      * Initiate WebDriver with current properties. Timeouts will be enabled.
+     * Session state will be restored, if its key is given in Capabilities.
+     * <p>
+     * Lightweight sessions (capability or TestNG group "lightweight") start in-process HtmlUnitDriver,
+     * which escalates to configured browser on JavaScript error, unsupported command or screenshot.
      * <p>
      * Throws RuntimeException with "WebDriver has been already initialized. Terminate it first.".
      * <p>
@@ -34,6 +38,16 @@ public interface WDService {
      */
     void disableTimeouts();
 
+    /**
+     * Wait until current page is ready: document is loaded, and DOM and network have been quiet
+     * for quiet period from Capabilities. Wait is bounded by page load timeout.
+     * <p>
+     * Throws NullPointerException with "WebDriver has been not initialized.".
+     * Closed window, lost session or unreachable browser fails the wait immediately.
+     * @return report of wait
+     */
+    PageReadiness.Report waitForReady();
+
     /**
      * Wraps current WebDriver with wrapper(must implement WebDriver, WrapsDriver).
      * <p>
@@ -45,14 +59,41 @@ public interface WDService {
     /**
      * Wraps current WebDriver with wrapper(must implements WebDriver, WrapsDriver).
      * <p>
-     * Throws IllegalArgumentException with "Wrapper class is not instance of WebDriver.".
+     * Throws IllegalArgumentException with "Wrapper class is not instance of WebDriver.", or if wrapper class
+     * doesn't have (WebDriver) constructor.
      * <p>
-     * Throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException.
+     * Throws RuntimeException with "Can't wrap WebDriver with [name]." if constructor has failed.
      * @param driverWrapperClass WebDriver wrapped class with (WebDriver instance) constructor
      * @param <T> must implement WebDriver, WrapsDriver
      */
     <T extends WrapsDriver> void wrapWith(Class<T> driverWrapperClass);
 
+    /**
+     * Set chain of wrappers, which is applied to every initialized WebDriver of this session
+     * instead of WDServiceProvider.setDefaultWrapperChain().
+     * @param wrapperChain wrapper chain, or null to use default chain
+     */
+    void setWrapperChain(WrapperChain wrapperChain);
+
+    /**
+     * Capture cookies, local and session storage of current page under given key.
+     * <p>
+     * State is shared by all threads of JVM (and stored on disk, if session state store is given in Capabilities).
+     * <p>
+     * Throws NullPointerException with "WebDriver has been not initialized.".
+     * @param key user supplied key (e.g. name of logged in user)
+     */
+    void captureSessionState(String key);
+
+    /**
+     * Restore state captured under given key: open captured page, put its cookies and storages, reload it.
+     * <p>
+     * Throws NullPointerException with "WebDriver has been not initialized.".
+     * @param key user supplied key
+     * @return true if state has been restored, false if there is no state, or it is expired
+     */
+    boolean restoreSessionState(String key);
+
     /**
      * Set Capabilities.
      * @param capabilities Capabilities
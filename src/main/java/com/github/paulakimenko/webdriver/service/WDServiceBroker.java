@@ -0,0 +1,604 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.logging.LocalLogs;
+import org.openqa.selenium.logging.NeedsLocalLogs;
+import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.remote.Command;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.Response;
+import org.openqa.selenium.remote.SessionId;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Machine-wide broker of Remote WebDriver sessions, shared by all test JVMs of one agent.
+ * <p>
+ * Broker owns a pool of live sessions on Selenium server (hub URL). Client JVM (WDCapabilities.getBrokerPort())
+ * leases a session of its browser, attaches to it via RemoteWebDriver without starting a browser, and returns it
+ * after quit. Returned session is reset (cookies are deleted, about:blank is opened) and handed over to the next
+ * client; session, which can't be reset, is quit and dropped from the pool. Sessions are started on demand
+ * with browser name only, so client-side browser settings (Firefox profile, Chrome options) don't apply.
+ * <p>
+ * Number of live sessions never exceeds given limit: idle session of other browser is quit to make room.
+ * Waiting clients are served round-robin between JVMs, so one JVM can't starve the others.
+ * <p>
+ * Lease is bound to its socket connection: session returns to the pool when client sends RELEASE, or when
+ * connection is lost (e.g. client JVM has crashed, or has stopped waiting).
+ * <p>
+ * Protocol (UTF-8 lines): client sends "LEASE client-id browser-name", broker answers
+ * "GRANTED hub-url session-id" when session is handed over (or "REFUSED reason" if session can't be started),
+ * client sends "RELEASE" when it is done with session.
+ * <p>
+ * Usage: WDServiceBroker port max-sessions hub-url
+ */
+public class WDServiceBroker implements Closeable {
+    static final String LEASE = "LEASE";
+    static final String GRANTED = "GRANTED";
+    static final String REFUSED = "REFUSED";
+    static final String RELEASE = "RELEASE";
+
+    private static final String BLANK_PAGE = "about:blank";
+
+    private final int port;
+    private final int maxSessions;
+    private final URL hubUrl;
+    private final Map<String, Deque<Connection>> waiting = new LinkedHashMap<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final Map<String, Deque<RemoteWebDriver>> idle = new LinkedHashMap<>();
+    private final Set<RemoteWebDriver> sessions = new HashSet<>();
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("webdriver-broker-%d").build());
+    private ServerSocket serverSocket;
+    private int leased;
+
+    /**
+     * Build broker.
+     * @param port loopback port, or 0 for any free port
+     * @param maxSessions maximum number of sessions on this machine
+     * @param hubUrl URL of Selenium server, which hosts pooled sessions
+     */
+    public WDServiceBroker(int port, int maxSessions, URL hubUrl) {
+        if (maxSessions < 1)
+            throw new IllegalArgumentException("Max sessions count should be positive.");
+        this.port = port;
+        this.maxSessions = maxSessions;
+        this.hubUrl = hubUrl;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: WDServiceBroker port max-sessions hub-url");
+            System.exit(1);
+        }
+        final WDServiceBroker broker = new WDServiceBroker(
+                Integer.parseInt(args[0]), Integer.parseInt(args[1]), new URL(args[2]));
+        broker.bind();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    broker.close();
+                } catch (IOException ignored) {}
+            }
+        }));
+        System.out.println("WebDriver broker is listening on port " + broker.getPort()
+                + " for " + args[1] + " sessions of " + args[2]);
+        broker.acceptConnections();
+    }
+
+    /**
+     * Bind loopback port and accept clients in background.
+     * @throws IOException if port can't be bound
+     */
+    public void start() throws IOException {
+        bind();
+        connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * Get bound port.
+     * @return loopback port of broker
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Get number of leased sessions.
+     * @return leased sessions
+     */
+    public synchronized int getLeased() {
+        return leased;
+    }
+
+    /**
+     * Get number of clients, which are waiting for session.
+     * @return waiting clients
+     */
+    public synchronized int getWaiting() {
+        int count = 0;
+        for (Deque<Connection> queue : waiting.values())
+            count += queue.size();
+        return count;
+    }
+
+    /**
+     * Get number of live sessions, both leased and idle.
+     * @return live sessions
+     */
+    public synchronized int getSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Get number of idle sessions in the pool.
+     * @return idle sessions
+     */
+    public synchronized int getIdle() {
+        int count = 0;
+        for (Deque<RemoteWebDriver> pool : idle.values())
+            count += pool.size();
+        return count;
+    }
+
+    /**
+     * Stop accepting clients and quit all sessions of the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+        List<RemoteWebDriver> sessionsToQuit;
+        synchronized (this) {
+            for (Connection connection : connections)
+                connection.close();
+            sessionsToQuit = new ArrayList<>(sessions);
+            sessions.clear();
+            idle.clear();
+        }
+        for (RemoteWebDriver session : sessionsToQuit)
+            quit(session);
+    }
+
+    /**
+     * Lease session from broker, which is running on this machine.
+     * <p>
+     * Blocks until session is handed over or timeout expires. Client, which has timed out, closes its
+     * connection, so it is dropped from the queue.
+     * @param port loopback port of broker
+     * @param browserName browser name of session
+     * @param timeout maximum wait for session (0 to wait forever)
+     * @param timeUnit time unit of timeout
+     * @return lease, which should be closed after session quits
+     * @throws IOException if broker is not available, or session has not been handed over in time
+     */
+    public static Lease lease(int port, String browserName, long timeout, TimeUnit timeUnit) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeUnit.toMillis(timeout)));
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(LEASE + " " + ManagementFactory.getRuntimeMXBean().getName().replace(' ', '_')
+                    + " " + browserName + "\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String answer;
+            try {
+                answer = reader.readLine();
+            } catch (SocketTimeoutException e) {
+                throw new IOException("Session has not been handed over in " + timeout + " "
+                        + timeUnit.toString().toLowerCase() + ".", e);
+            }
+            String[] grant = answer == null ? new String[0] : answer.split(" ");
+            if (grant.length != 3 || !GRANTED.equals(grant[0]))
+                throw new IOException("Broker has refused lease: " + answer);
+            socket.setSoTimeout(0);
+            return new Lease(socket, writer, new URL(grant[1]), grant[2]);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /*
+    Privates
+     */
+
+    private void bind() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed())
+                    return;
+                continue;
+            }
+            connectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection = null;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String request = reader.readLine();
+            if (request == null || !request.startsWith(LEASE))
+                return;
+
+            String[] lease = request.split(" ");
+            connection = new Connection(
+                    lease.length > 1 ? lease[1] : "",
+                    lease.length > 2 ? lease[2] : BrowserType.FIREFOX,
+                    socket);
+            enqueue(connection);
+
+            // blocks until client releases lease or disconnects
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (RELEASE.equals(line))
+                    break;
+            }
+        } catch (IOException ignored) {
+            // connection is lost, lease is released below
+        } finally {
+            if (connection != null)
+                release(connection);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void enqueue(Connection connection) {
+        List<Connection> granted;
+        synchronized (this) {
+            connections.add(connection);
+            Deque<Connection> queue = waiting.get(connection.clientId);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waiting.put(connection.clientId, queue);
+            }
+            queue.add(connection);
+            granted = grant();
+        }
+        handOver(granted);
+    }
+
+    private void release(Connection connection) {
+        RemoteWebDriver session;
+        synchronized (this) {
+            connections.remove(connection);
+            if (!connection.granted) {
+                Deque<Connection> queue = waiting.get(connection.clientId);
+                if (queue != null) {
+                    queue.remove(connection);
+                    if (queue.isEmpty())
+                        waiting.remove(connection.clientId);
+                }
+                return;
+            }
+            connection.granted = false;
+            session = connection.session;
+            connection.session = null;
+        }
+        // session is counted as leased until it is back in the pool
+        if (session != null)
+            checkIn(connection.browserName, session);
+        List<Connection> granted;
+        synchronized (this) {
+            leased--;
+            granted = grant();
+        }
+        handOver(granted);
+    }
+
+    /**
+     * Grant free sessions round-robin: first waiting connection of the first client, then client goes to the end.
+     * @return granted connections, which get their sessions outside of lock
+     */
+    private List<Connection> grant() {
+        List<Connection> granted = new ArrayList<>();
+        while (leased < maxSessions && !waiting.isEmpty()) {
+            Iterator<Map.Entry<String, Deque<Connection>>> iterator = waiting.entrySet().iterator();
+            Map.Entry<String, Deque<Connection>> entry = iterator.next();
+            iterator.remove();
+            Deque<Connection> queue = entry.getValue();
+            Connection connection = queue.poll();
+            if (!queue.isEmpty())
+                waiting.put(entry.getKey(), queue);
+
+            connection.granted = true;
+            leased++;
+            granted.add(connection);
+        }
+        return granted;
+    }
+
+    private void handOver(List<Connection> granted) {
+        for (final Connection connection : granted) {
+            // starting of session takes seconds, so it doesn't block serving thread of another client
+            connectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handOver(connection);
+                }
+            });
+        }
+    }
+
+    private void handOver(Connection connection) {
+        RemoteWebDriver session;
+        try {
+            session = checkOut(connection.browserName);
+        } catch (WebDriverException e) {
+            try {
+                connection.send(REFUSED + " " + String.valueOf(e.getMessage()).split("\n")[0]);
+            } catch (IOException ignored) {}
+            // serve() releases its lease
+            connection.close();
+            return;
+        }
+
+        boolean handedOver;
+        synchronized (this) {
+            handedOver = connection.granted;
+            if (handedOver)
+                connection.session = session;
+        }
+        if (!handedOver) {
+            // client has gone away while session was started
+            checkIn(connection.browserName, session);
+            return;
+        }
+        try {
+            connection.send(GRANTED + " " + hubUrl + " " + session.getSessionId());
+        } catch (IOException e) {
+            // client has gone away, serve() returns its session
+            connection.close();
+        }
+    }
+
+    /**
+     * Take idle session of given browser, or start new one.
+     */
+    private RemoteWebDriver checkOut(String browserName) {
+        RemoteWebDriver evicted = null;
+        synchronized (this) {
+            Deque<RemoteWebDriver> pool = idle.get(browserName);
+            if (pool != null && !pool.isEmpty())
+                return pool.poll();
+            if (sessions.size() >= maxSessions)
+                evicted = pollIdle();
+        }
+        if (evicted != null)
+            quit(evicted);
+
+        RemoteWebDriver session = new RemoteWebDriver(hubUrl, new DesiredCapabilities(browserName, "", Platform.ANY));
+        synchronized (this) {
+            sessions.add(session);
+        }
+        return session;
+    }
+
+    /**
+     * Reset returned session and put it back to the pool.
+     */
+    private void checkIn(String browserName, RemoteWebDriver session) {
+        try {
+            session.manage().deleteAllCookies();
+            session.get(BLANK_PAGE);
+        } catch (WebDriverException e) {
+            synchronized (this) {
+                sessions.remove(session);
+            }
+            quit(session);
+            return;
+        }
+        synchronized (this) {
+            if (!sessions.contains(session))
+                return;
+            Deque<RemoteWebDriver> pool = idle.get(browserName);
+            if (pool == null) {
+                pool = new ArrayDeque<>();
+                idle.put(browserName, pool);
+            }
+            pool.add(session);
+        }
+    }
+
+    /**
+     * Take the longest idle session of any browser.
+     */
+    private RemoteWebDriver pollIdle() {
+        for (Deque<RemoteWebDriver> pool : idle.values()) {
+            RemoteWebDriver session = pool.poll();
+            if (session != null) {
+                sessions.remove(session);
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private static void quit(RemoteWebDriver session) {
+        try {
+            session.quit();
+        } catch (WebDriverException ignored) {
+            // session is gone anyway
+        }
+    }
+
+    /**
+     * Client connection, which is waiting for or holding one session.
+     */
+    private static final class Connection {
+        private final String clientId;
+        private final String browserName;
+        private final Socket socket;
+        private boolean granted;
+        private RemoteWebDriver session;
+
+        Connection(String clientId, String browserName, Socket socket) {
+            this.clientId = clientId;
+            this.browserName = browserName;
+            this.socket = socket;
+        }
+
+        void send(String line) throws IOException {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(line + "\n");
+            writer.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Session, which is leased from broker.
+     */
+    public static final class Lease implements Closeable {
+        private final Socket socket;
+        private final Writer writer;
+        private final URL hubUrl;
+        private final String sessionId;
+
+        Lease(Socket socket, Writer writer, URL hubUrl, String sessionId) {
+            this.socket = socket;
+            this.writer = writer;
+            this.hubUrl = hubUrl;
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Get URL of Selenium server, which hosts the session.
+         * @return hub URL
+         */
+        public URL getHubUrl() {
+            return hubUrl;
+        }
+
+        /**
+         * Get id of leased session.
+         * @return session id
+         */
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Get command executor, which attaches RemoteWebDriver to leased session.
+         * <p>
+         * New session command fetches capabilities of leased session, quit command leaves session alive,
+         * so it returns to the pool when lease is closed.
+         * @return command executor for RemoteWebDriver
+         */
+        public CommandExecutor getCommandExecutor() {
+            return new AttachingCommandExecutor(new HttpCommandExecutor(hubUrl), sessionId);
+        }
+
+        /**
+         * Return session to the pool.
+         */
+        @Override
+        public void close() {
+            try {
+                writer.write(RELEASE + "\n");
+                writer.flush();
+            } catch (IOException ignored) {
+                // broker has gone away, session is returned anyway
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Command executor of RemoteWebDriver, which is attached to existing session.
+     */
+    private static final class AttachingCommandExecutor implements CommandExecutor, NeedsLocalLogs {
+        private final HttpCommandExecutor executor;
+        private final String sessionId;
+
+        AttachingCommandExecutor(HttpCommandExecutor executor, String sessionId) {
+            this.executor = executor;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public Response execute(Command command) throws IOException {
+            switch (command.getName()) {
+                case DriverCommand.NEW_SESSION:
+                    Response response = executor.execute(
+                            new Command(new SessionId(sessionId), DriverCommand.GET_CAPABILITIES));
+                    if (!(response.getValue() instanceof Map))
+                        response.setValue(new HashMap<String, Object>());
+                    response.setSessionId(sessionId);
+                    return response;
+                case DriverCommand.QUIT:
+                    Response quit = new Response(new SessionId(sessionId));
+                    quit.setStatus(0);
+                    return quit;
+                default:
+                    return executor.execute(command);
+            }
+        }
+
+        @Override
+        public void setLocalLogs(LocalLogs logs) {
+            executor.setLocalLogs(logs);
+        }
+    }
+}
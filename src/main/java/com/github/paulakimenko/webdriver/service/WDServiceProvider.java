@@ -1,9 +1,12 @@
 package com.github.paulakimenko.webdriver.service;
 
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.opera.core.systems.OperaDriver;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.Platform;
 import org.openqa.selenium.TakesScreenshot;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.chrome.ChromeDriver;
@@ -12,31 +15,57 @@ import org.openqa.selenium.htmlunit.HtmlUnitDriver;
 import org.openqa.selenium.ie.InternetExplorerDriver;
 import org.openqa.selenium.internal.WrapsDriver;
 import org.openqa.selenium.phantomjs.PhantomJSDriver;
-import org.openqa.selenium.remote.Augmenter;
 import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.LocalFileDetector;
 import org.openqa.selenium.remote.RemoteWebDriver;
 import org.openqa.selenium.safari.SafariDriver;
-import org.openqa.selenium.support.ThreadGuard;
 import org.openqa.selenium.support.ui.WebDriverWait;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
 /**
  * Implementation of WDService.
  * <p>
  * Uses java.lang.ThreadLocal for generating of thread local instances.
+ * Each thread could have several named instances (sessions) with independent Capabilities.
  */
 public class WDServiceProvider implements WDService {
-    private static ThreadLocal<WDService> threadLocal = new ThreadLocal<WDService>() {
-            @Override
-            public WDService initialValue() {
-                return new WDServiceProvider();
-            }
-    };
+    /**
+     * Name of session, which is provided by getInstance() without arguments.
+     */
+    public static final String DEFAULT_SESSION = "default";
+
+    private static final ExecutorService sessionExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("webdriver-service-%d").build());
+
+    private static ThreadLocal<Map<String, WDServiceProvider>> threadLocal =
+            new ThreadLocal<Map<String, WDServiceProvider>>() {
+                @Override
+                public Map<String, WDServiceProvider> initialValue() {
+                    return new LinkedHashMap<>();
+                }
+            };
+    private static volatile WrapperChain defaultWrapperChain;
 
     private WebDriver driver;
+    private ThreadGuardHandler threadGuard;
+    private volatile WDServiceStats.Session statsSession;
+    private WDServiceBroker.Lease brokerLease;
+    private WrapperChain wrapperChain;
     private WDCapabilities wdCapabilities;
 
     private WDServiceProvider() {
@@ -49,62 +78,169 @@ public class WDServiceProvider implements WDService {
      * @return single instance of WDService for current thread
      */
     public static WDService getInstance() {
-        return threadLocal.get();
+        return getInstance(DEFAULT_SESSION);
     }
 
     /**
-     * Remove current thread instance.
+     * Get named instance (or create new) of WDService for current thread.
+     * @param name session name (e.g. "alice", "bob")
+     * @return named instance of WDService for current thread
+     */
+    public static WDService getInstance(String name) {
+        Map<String, WDServiceProvider> sessions = threadLocal.get();
+        WDServiceProvider service = sessions.get(name);
+        if (service == null) {
+            service = new WDServiceProvider();
+            sessions.put(name, service);
+        }
+        return service;
+    }
+
+    /**
+     * Get all named instances of current thread.
+     * @return map of session name to instance of WDService
+     */
+    public static Map<String, WDService> getSessions() {
+        return Collections.<String, WDService>unmodifiableMap(threadLocal.get());
+    }
+
+    /**
+     * Remove all instances of current thread.
      */
     public static void removeInstance() {
         threadLocal.remove();
     }
 
+    /**
+     * Remove named instance of current thread.
+     * @param name session name
+     */
+    public static void removeInstance(String name) {
+        threadLocal.get().remove(name);
+    }
+
+    /**
+     * Set chain of wrappers, which is applied to every initialized WebDriver of all threads and named sessions,
+     * unless session has its own chain (WDService.setWrapperChain()).
+     * @param wrapperChain wrapper chain, or null to disable default wrapping
+     */
+    public static void setDefaultWrapperChain(WrapperChain wrapperChain) {
+        defaultWrapperChain = wrapperChain;
+    }
+
+    /**
+     * Initiate WebDrivers of all named instances of current thread in parallel.
+     * <p>
+     * Throws RuntimeException with "WebDriver has been already initialized. Terminate it first.".
+     * <p>
+     * Throws RuntimeException with "Can't initialize session [name]." if some of WebDrivers can't be started,
+     * WebDrivers of other sessions, which have been started by this call, are terminated.
+     */
+    public static void initAll() {
+        Map<String, WDServiceProvider> sessions = threadLocal.get();
+        for (WDServiceProvider service : sessions.values()) {
+            if (service.driver != null)
+                throw new RuntimeException("WebDriver has been already initialized. Terminate it first.");
+        }
+
+        Map<String, Future<WebDriver>> startedDrivers = new LinkedHashMap<>();
+        for (Map.Entry<String, WDServiceProvider> entry : sessions.entrySet()) {
+            final WDServiceProvider service = entry.getValue();
+            final boolean lightweight = service.isLightweight();
+            startedDrivers.put(entry.getKey(), sessionExecutor.submit(new Callable<WebDriver>() {
+                @Override
+                public WebDriver call() {
+                    return service.startDriver(lightweight);
+                }
+            }));
+        }
+
+        RuntimeException failure = null;
+        List<WDServiceProvider> initialized = new ArrayList<>();
+        for (Map.Entry<String, Future<WebDriver>> entry : startedDrivers.entrySet()) {
+            WDServiceProvider service = sessions.get(entry.getKey());
+            try {
+                service.setStartedDriver(getUninterruptibly(entry.getValue()));
+                initialized.add(service);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = new RuntimeException("Can't initialize session " + entry.getKey() + ".", e.getCause());
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = new RuntimeException("Can't initialize session " + entry.getKey() + ".", e);
+            }
+        }
+        if (failure != null) {
+            for (WDServiceProvider service : initialized) {
+                try {
+                    service.terminate();
+                } catch (RuntimeException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Terminate WebDrivers of all initialized named instances of current thread in parallel.
+     */
+    public static void terminateAll() {
+        List<Future<?>> quits = new ArrayList<>();
+        for (WDServiceProvider service : threadLocal.get().values()) {
+            if (service.driver == null)
+                continue;
+            // quit through all wrappers, guarded driver is handed over to quitting thread
+            final WebDriver driverToQuit = service.driver;
+            final ThreadGuardHandler guard = service.threadGuard;
+            final WDServiceBroker.Lease lease = service.brokerLease;
+            service.brokerLease = null;
+            service.resetDriver(null);
+            quits.add(sessionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        if (guard != null)
+                            guard.takeOwnership();
+                        driverToQuit.quit();
+                    } finally {
+                        if (lease != null)
+                            lease.close();
+                    }
+                    WDServiceStats.getInstance().recordTerminate(System.nanoTime() - start);
+                }
+            }));
+        }
+
+        RuntimeException failure = null;
+        for (Future<?> quit : quits) {
+            try {
+                getUninterruptibly(quit);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = new RuntimeException("Can't terminate session.", e.getCause());
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
     @Override
     public void init() {
         if (driver != null)
             throw new RuntimeException("WebDriver has been already initialized. Terminate it first.");
 
-        if (wdCapabilities.isRemote()) {
-            RemoteWebDriver remoteWebDriver = new RemoteWebDriver(wdCapabilities.getHubUrl(), wdCapabilities);
-            remoteWebDriver.setFileDetector(new LocalFileDetector());
-            driver = ThreadGuard.protect(new Augmenter().augment(remoteWebDriver));
-        } else {
-            switch (wdCapabilities.getBrowserName()) {
-                case BrowserType.FIREFOX:
-                    driver = new FirefoxDriver(wdCapabilities);
-                    break;
-                case BrowserType.CHROME:
-                    driver = new ChromeDriver(wdCapabilities);
-                    break;
-                case BrowserType.SAFARI:
-                    driver = new SafariDriver(wdCapabilities);
-                    break;
-                case BrowserType.IEXPLORE:
-                case BrowserType.IE:
-                    driver = new InternetExplorerDriver(wdCapabilities);
-                    break;
-                case BrowserType.OPERA:
-                    driver = new OperaDriver(wdCapabilities);
-                    break;
-                case BrowserType.HTMLUNIT:
-                    driver = new HtmlUnitDriver(wdCapabilities);
-                    break;
-                case BrowserType.PHANTOMJS:
-                    driver = new PhantomJSDriver(wdCapabilities);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Given driver type has been not implemented yet.");
-            }
-        }
-        changeWindowSize();
-        enableTimeouts();
+        setStartedDriver(startDriver(isLightweight()));
     }
 
     @Override
     public void terminate() {
         if (driver != null) {
+            long start = System.nanoTime();
             driver.quit();
-            driver = null;
+            WDServiceStats.getInstance().recordTerminate(System.nanoTime() - start);
+            resetDriver(null);
         } else {
             throw new NullPointerException("WebDriver has been not initialized.");
         }
@@ -113,6 +249,7 @@ public class WDServiceProvider implements WDService {
     @Override
     public void enableTimeouts() {
         setTimeouts(
+                getDriver(),
                 wdCapabilities.getImplicitlyWait(),
                 wdCapabilities.getPageLoadTimeout(),
                 wdCapabilities.getScriptTimeout(),
@@ -122,7 +259,19 @@ public class WDServiceProvider implements WDService {
 
     @Override
     public void disableTimeouts() {
-        setTimeouts(0, 0, 0, wdCapabilities.getTimeUnit());
+        setTimeouts(getDriver(), 0, 0, 0, wdCapabilities.getTimeUnit());
+    }
+
+    @Override
+    public PageReadiness.Report waitForReady() {
+        if (driver == null)
+            throw new NullPointerException("WebDriver has been not initialized.");
+        return PageReadiness.await(
+                driver,
+                wdCapabilities.getReadyQuietPeriod(),
+                wdCapabilities.getTimeUnit().toMillis(wdCapabilities.getPageLoadTimeout()),
+                TimeUnit.MILLISECONDS
+        );
     }
 
     @Override
@@ -130,6 +279,7 @@ public class WDServiceProvider implements WDService {
         WrapsDriver wrapsDriver = transformFunction.apply(driver);
         if (wrapsDriver instanceof WebDriver) {
             driver = (WebDriver) wrapsDriver;
+            WDServiceStats.getInstance().recordWrap(driver);
         } else {
             throw new IllegalArgumentException("transformFunction doesn't produce WebDriver instance");
         }
@@ -137,24 +287,29 @@ public class WDServiceProvider implements WDService {
 
     @Override
     public <T extends WrapsDriver> void wrapWith(Class<T> driverWrapperClass) {
-        WrapsDriver wrapsDriver = null;
-
-        try {
-            wrapsDriver = driverWrapperClass.getDeclaredConstructor(WebDriver.class).newInstance(driver);
-        } catch (InstantiationException
-                | IllegalAccessException
-                | InvocationTargetException
-                | NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-
+        WrapsDriver wrapsDriver = WrapperChain.newWrapper(driverWrapperClass, driver);
         if (wrapsDriver instanceof WebDriver) {
             driver = (WebDriver) wrapsDriver;
+            WDServiceStats.getInstance().recordWrap(driver);
         } else {
             throw new IllegalArgumentException("Wrapper class is not instance of WebDriver.");
         }
     }
 
+    @Override
+    public void captureSessionState(String key) {
+        if (driver == null)
+            throw new NullPointerException("WebDriver has been not initialized.");
+        getSessionStateCache().put(key, SessionState.capture(driver, getJsExecutor()));
+    }
+
+    @Override
+    public boolean restoreSessionState(String key) {
+        if (driver == null)
+            throw new NullPointerException("WebDriver has been not initialized.");
+        return restoreSessionState(driver, key);
+    }
+
     @Override
     public void setCapabilities(Capabilities capabilities) {
         if (!(capabilities instanceof WDCapabilities)) {
@@ -164,9 +319,14 @@ public class WDServiceProvider implements WDService {
         }
     }
 
+    @Override
+    public void setWrapperChain(WrapperChain wrapperChain) {
+        this.wrapperChain = wrapperChain;
+    }
+
     @Override
     public void setCustomDriver(WebDriver driver) {
-        this.driver = driver;
+        resetDriver(driver);
     }
 
     @Override
@@ -191,18 +351,221 @@ public class WDServiceProvider implements WDService {
         return new WebDriverWait(getDriver(), wdCapabilities.getFluentWaitTimeout());
     }
 
-    private void changeWindowSize() {
+    private WebDriver startDriver(boolean lightweight) {
+        long start = System.nanoTime();
+        try {
+            WebDriver startedDriver = lightweight ? launchLightweightDriver() : launchDriver();
+            WDServiceStats.getInstance().recordInit(System.nanoTime() - start);
+            return startedDriver;
+        } catch (RuntimeException e) {
+            WDServiceStats.getInstance().recordFailedInit();
+            throw e;
+        }
+    }
+
+    /**
+     * Launch in-process HtmlUnitDriver, which emulates configured browser and escalates to it on demand.
+     */
+    private WebDriver launchLightweightDriver() {
+        DesiredCapabilities capabilities = new DesiredCapabilities(wdCapabilities.getBrowserName(), "", Platform.ANY);
+        capabilities.setJavascriptEnabled(true);
+        HtmlUnitDriver htmlUnitDriver = new HtmlUnitDriver(capabilities);
+        setTimeouts(
+                htmlUnitDriver,
+                wdCapabilities.getImplicitlyWait(),
+                wdCapabilities.getPageLoadTimeout(),
+                wdCapabilities.getScriptTimeout(),
+                wdCapabilities.getTimeUnit()
+        );
+        WDServiceStats.getInstance().recordLightweightInit();
+        WebDriver startedDriver = EscalatingDriver.wrap(htmlUnitDriver, new Supplier<WebDriver>() {
+            @Override
+            public WebDriver get() {
+                WebDriver realDriver = startDriver(false);
+                WDServiceStats.Session session = statsSession;
+                if (session != null)
+                    session.escalate(wdCapabilities);
+                return realDriver;
+            }
+        });
+        try {
+            restoreInitialSessionState(startedDriver);
+        } catch (RuntimeException e) {
+            startedDriver.quit();
+            throw e;
+        }
+        return startedDriver;
+    }
+
+    private WebDriver launchDriver() {
+        if (wdCapabilities.getBrokerPort() > 0) {
+            try {
+                brokerLease = WDServiceBroker.lease(wdCapabilities.getBrokerPort(), wdCapabilities.getBrowserName(),
+                        wdCapabilities.getBrokerLeaseTimeout(), wdCapabilities.getTimeUnit());
+            } catch (IOException e) {
+                throw new RuntimeException("Can't lease session from broker.", e);
+            }
+        }
+        try {
+            return launchDriver(brokerLease);
+        } catch (RuntimeException e) {
+            releaseLease();
+            throw e;
+        }
+    }
+
+    /**
+     * Launch browser, or attach to session of broker lease (browser settings of pooled session are broker's).
+     */
+    private WebDriver launchDriver(WDServiceBroker.Lease lease) {
+        Capabilities capabilities = PerformanceProfiles.toBrowserCapabilities(wdCapabilities);
+        if (BrowserType.FIREFOX.equals(wdCapabilities.getBrowserName()) && lease == null
+                && (!isRemote() || hasFirefoxCustomizations()))
+            capabilities = FirefoxProfileCache.getInstance().withCachedProfile(capabilities, wdCapabilities);
+        WebDriver startedDriver;
+
+        if (isRemote()) {
+            RemoteWebDriver remoteWebDriver = lease == null
+                    ? new RemoteWebDriver(wdCapabilities.getHubUrl(), capabilities)
+                    : new RemoteWebDriver(lease.getCommandExecutor(), capabilities);
+            remoteWebDriver.setFileDetector(new LocalFileDetector());
+            startedDriver = AugmenterCache.augment(remoteWebDriver);
+        } else {
+            switch (wdCapabilities.getBrowserName()) {
+                case BrowserType.FIREFOX:
+                    startedDriver = new FirefoxDriver(capabilities);
+                    break;
+                case BrowserType.CHROME:
+                    startedDriver = new ChromeDriver(capabilities);
+                    break;
+                case BrowserType.SAFARI:
+                    startedDriver = new SafariDriver(capabilities);
+                    break;
+                case BrowserType.IEXPLORE:
+                case BrowserType.IE:
+                    startedDriver = new InternetExplorerDriver(capabilities);
+                    break;
+                case BrowserType.OPERA:
+                    startedDriver = new OperaDriver(capabilities);
+                    break;
+                case BrowserType.HTMLUNIT:
+                    startedDriver = new HtmlUnitDriver(capabilities);
+                    break;
+                case BrowserType.PHANTOMJS:
+                    startedDriver = new PhantomJSDriver(capabilities);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Given driver type has been not implemented yet.");
+            }
+        }
+        // browser is already running, so it is quit if it can't be set up
+        try {
+            WebDriver decoratedDriver = PerformanceProfiles.decorate(startedDriver, wdCapabilities);
+            changeWindowSize(decoratedDriver);
+            setTimeouts(
+                    decoratedDriver,
+                    wdCapabilities.getImplicitlyWait(),
+                    wdCapabilities.getPageLoadTimeout(),
+                    wdCapabilities.getScriptTimeout(),
+                    wdCapabilities.getTimeUnit()
+            );
+            restoreInitialSessionState(decoratedDriver);
+            return decoratedDriver;
+        } catch (RuntimeException e) {
+            startedDriver.quit();
+            throw e;
+        }
+    }
+
+    private void restoreInitialSessionState(WebDriver startedDriver) {
+        if (wdCapabilities.getSessionState() != null)
+            restoreSessionState(startedDriver, wdCapabilities.getSessionState());
+    }
+
+    private void setStartedDriver(WebDriver startedDriver) {
+        WrapperChain chain = wrapperChain != null ? wrapperChain : defaultWrapperChain;
+        if (chain != null) {
+            try {
+                startedDriver = chain.apply(startedDriver);
+            } catch (RuntimeException e) {
+                startedDriver.quit();
+                releaseLease();
+                throw e;
+            }
+            WDServiceStats.getInstance().recordWrap(startedDriver);
+        }
+        boolean lightweight = EscalatingDriver.isLightweight(startedDriver);
+        resetDriver(startedDriver);
+        statsSession = WDServiceStats.getInstance().startSession(wdCapabilities, lightweight);
+        if (isRemote() && wdCapabilities.getThreadGuardMode().isEnabled()) {
+            driver = ThreadGuardHandler.protect(startedDriver);
+            threadGuard = ThreadGuardHandler.of(driver);
+        }
+    }
+
+    private void resetDriver(WebDriver newDriver) {
+        if (statsSession != null) {
+            statsSession.end();
+            statsSession = null;
+        }
+        if (driver != null)
+            releaseLease();
+        driver = newDriver;
+        threadGuard = null;
+    }
+
+    private boolean restoreSessionState(WebDriver targetDriver, String key) {
+        SessionState state = getSessionStateCache().get(
+                key, wdCapabilities.getSessionStateTtl(), wdCapabilities.getTimeUnit());
+        if (state == null)
+            return false;
+        state.restore(targetDriver, (JavascriptExecutor) targetDriver);
+        return true;
+    }
+
+    private boolean isLightweight() {
+        if (BrowserType.HTMLUNIT.equals(wdCapabilities.getBrowserName()))
+            return false;
+        return wdCapabilities.isLightweight() || EscalatingDriver.isLightweightTest();
+    }
+
+    /**
+     * Sending profile to remote server takes longer than server's own default profile, so it is sent only
+     * when it carries preferences or extensions.
+     */
+    private boolean hasFirefoxCustomizations() {
+        return !PerformanceProfiles.getFirefoxPreferences(wdCapabilities.getPerformanceProfile()).isEmpty()
+                || !wdCapabilities.getFirefoxExtensions().isEmpty();
+    }
+
+    private boolean isRemote() {
+        return wdCapabilities.isRemote() || wdCapabilities.getBrokerPort() > 0;
+    }
+
+    private void releaseLease() {
+        if (brokerLease != null) {
+            brokerLease.close();
+            brokerLease = null;
+        }
+    }
+
+    private SessionStateCache getSessionStateCache() {
+        return SessionStateCache.getInstance(wdCapabilities.getSessionStateStore());
+    }
+
+    private void changeWindowSize(WebDriver targetDriver) {
         Window window = wdCapabilities.getWindow();
         if (Size.MAXIMIZE.equals(window.getSize())) {
-            driver.manage().window().maximize();
+            targetDriver.manage().window().maximize();
         } else if (Size.CUSTOM.equals(window.getSize())) {
-            driver.manage().window().setSize(window.getCustomSize());
+            targetDriver.manage().window().setSize(window.getCustomSize());
         }
-        driver.manage().window().setPosition(window.getPosition());
+        targetDriver.manage().window().setPosition(window.getPosition());
     }
 
-    private void setTimeouts(long implicitlyWait, long pageLoadTimeout, long scriptTimeout, TimeUnit timeUnit) {
-        WebDriver.Timeouts timeouts = getDriver().manage().timeouts();
+    private static void setTimeouts(WebDriver targetDriver, long implicitlyWait, long pageLoadTimeout,
+                                    long scriptTimeout, TimeUnit timeUnit) {
+        WebDriver.Timeouts timeouts = targetDriver.manage().timeouts();
         timeouts.implicitlyWait(implicitlyWait, timeUnit);
         timeouts.pageLoadTimeout(pageLoadTimeout, timeUnit);
         timeouts.setScriptTimeout(scriptTimeout, timeUnit);
@@ -0,0 +1,378 @@
+package com.github.paulakimenko.webdriver.service;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.internal.WrapsDriver;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Statistics of WDService instances of JVM.
+ * <p>
+ * Counters are striped by thread, so updates from many test threads don't contend.
+ * Exposed via JMX and, optionally, via MetricsBridge.
+ */
+public final class WDServiceStats implements WDServiceStatsMXBean {
+    public static final String OBJECT_NAME = "com.github.paulakimenko.webdriver.service:type=WDServiceStats";
+
+    private static final String METRIC_PREFIX = "webdriver.service.";
+    private static final String LOCAL_HUB = "local";
+    private static final String BROKER_HUB = "broker:";
+    private static final WDServiceStats INSTANCE = register(new WDServiceStats());
+
+    private final ConcurrentMap<String, StripedCounter> activeDrivers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StripedCounter> sessionsPerHub = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StripedCounter> timeoutsInUse = new ConcurrentHashMap<>();
+    private final StripedCounter initCount = new StripedCounter();
+    private final StripedCounter failedInitCount = new StripedCounter();
+    private final StripedCounter terminateCount = new StripedCounter();
+    private final StripedCounter wrapCount = new StripedCounter();
+    private final StripedCounter wrapperDepthSum = new StripedCounter();
+    private final AtomicInteger maxWrapperChainDepth = new AtomicInteger();
+    private final StripedCounter lightweightInitCount = new StripedCounter();
+    private final StripedCounter escalationCount = new StripedCounter();
+    private final ConcurrentMap<String, StripedCounter> escalationsByTest = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StripedCounter> escalationsByReason = new ConcurrentHashMap<>();
+    private final LatencyHistogram initLatency = new LatencyHistogram();
+    private final LatencyHistogram terminateLatency = new LatencyHistogram();
+    private final StripedCounter readinessTimeoutCount = new StripedCounter();
+    private final LatencyHistogram readinessLatency = new LatencyHistogram();
+    private volatile MetricsBridge metricsBridge;
+    private volatile boolean jmxRegistered;
+
+    private WDServiceStats() {}
+
+    /**
+     * Get statistics of JVM.
+     * @return statistics of JVM
+     */
+    public static WDServiceStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set bridge to external metrics registry.
+     * @param metricsBridge metrics bridge, or null to disable bridging
+     */
+    public void setMetricsBridge(MetricsBridge metricsBridge) {
+        this.metricsBridge = metricsBridge;
+    }
+
+    /**
+     * Is this instance registered in platform MBean server as OBJECT_NAME.
+     * @return false if registration has failed, or name is taken by another class loader of the same JVM
+     */
+    public boolean isJmxRegistered() {
+        return jmxRegistered;
+    }
+
+    @Override
+    public Map<String, Long> getActiveDrivers() {
+        return snapshot(activeDrivers);
+    }
+
+    @Override
+    public Map<String, Long> getSessionsPerHub() {
+        return snapshot(sessionsPerHub);
+    }
+
+    @Override
+    public Map<String, Long> getTimeoutsInUse() {
+        return snapshot(timeoutsInUse);
+    }
+
+    @Override
+    public long getInitCount() {
+        return initCount.sum();
+    }
+
+    @Override
+    public long getFailedInitCount() {
+        return failedInitCount.sum();
+    }
+
+    @Override
+    public long getTerminateCount() {
+        return terminateCount.sum();
+    }
+
+    @Override
+    public double getInitLatencyP50() {
+        return initLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public double getInitLatencyP90() {
+        return initLatency.getPercentile(0.9);
+    }
+
+    @Override
+    public double getInitLatencyP99() {
+        return initLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public double getTerminateLatencyP50() {
+        return terminateLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public double getTerminateLatencyP99() {
+        return terminateLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getWrapCount() {
+        return wrapCount.sum();
+    }
+
+    @Override
+    public int getMaxWrapperChainDepth() {
+        return maxWrapperChainDepth.get();
+    }
+
+    @Override
+    public double getAverageWrapperChainDepth() {
+        long wraps = wrapCount.sum();
+        return wraps == 0 ? 0 : (double) wrapperDepthSum.sum() / wraps;
+    }
+
+    @Override
+    public long getLightweightInitCount() {
+        return lightweightInitCount.sum();
+    }
+
+    @Override
+    public long getEscalationCount() {
+        return escalationCount.sum();
+    }
+
+    @Override
+    public double getEscalationRate() {
+        long lightweightInits = lightweightInitCount.sum();
+        return lightweightInits == 0 ? 0 : (double) escalationCount.sum() / lightweightInits;
+    }
+
+    @Override
+    public Map<String, Long> getEscalationsByTest() {
+        return snapshot(escalationsByTest);
+    }
+
+    @Override
+    public Map<String, Long> getEscalationsByReason() {
+        return snapshot(escalationsByReason);
+    }
+
+    @Override
+    public long getReadinessWaitCount() {
+        return readinessLatency.getCount();
+    }
+
+    @Override
+    public long getReadinessTimeoutCount() {
+        return readinessTimeoutCount.sum();
+    }
+
+    @Override
+    public double getReadinessWaitP50() {
+        return readinessLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public double getReadinessWaitP99() {
+        return readinessLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public void reset() {
+        initCount.reset();
+        failedInitCount.reset();
+        terminateCount.reset();
+        wrapCount.reset();
+        wrapperDepthSum.reset();
+        maxWrapperChainDepth.set(0);
+        initLatency.reset();
+        terminateLatency.reset();
+        lightweightInitCount.reset();
+        escalationCount.reset();
+        escalationsByTest.clear();
+        escalationsByReason.clear();
+        readinessTimeoutCount.reset();
+        readinessLatency.reset();
+    }
+
+    void recordInit(long nanos) {
+        initCount.increment();
+        initLatency.record(nanos);
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.time(METRIC_PREFIX + "init", nanos);
+    }
+
+    void recordFailedInit() {
+        failedInitCount.increment();
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.count(METRIC_PREFIX + "init.failed", 1);
+    }
+
+    void recordTerminate(long nanos) {
+        terminateCount.increment();
+        terminateLatency.record(nanos);
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.time(METRIC_PREFIX + "terminate", nanos);
+    }
+
+    void recordLightweightInit() {
+        lightweightInitCount.increment();
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.count(METRIC_PREFIX + "lightweight.init", 1);
+    }
+
+    void recordEscalation(String test, String reason) {
+        escalationCount.increment();
+        counter(escalationsByTest, test).increment();
+        counter(escalationsByReason, reason).increment();
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.count(METRIC_PREFIX + "lightweight.escalation", 1);
+    }
+
+    void recordReadinessWait(long nanos, boolean ready) {
+        readinessLatency.record(nanos);
+        if (!ready)
+            readinessTimeoutCount.increment();
+        MetricsBridge bridge = metricsBridge;
+        if (bridge != null)
+            bridge.time(METRIC_PREFIX + (ready ? "ready" : "ready.timeout"), nanos);
+    }
+
+    void recordWrap(WebDriver driver) {
+        int depth = 0;
+        for (WebDriver current = driver; current instanceof WrapsDriver; current = ((WrapsDriver) current).getWrappedDriver())
+            depth++;
+
+        wrapCount.increment();
+        wrapperDepthSum.add(depth);
+        int max = maxWrapperChainDepth.get();
+        while (depth > max && !maxWrapperChainDepth.compareAndSet(max, depth))
+            max = maxWrapperChainDepth.get();
+    }
+
+    /**
+     * Start tracking of active session.
+     * @param wdCapabilities capabilities of session
+     * @param lightweight true, if session runs in-process HtmlUnitDriver
+     * @return session, which should be ended on termination
+     */
+    Session startSession(WDCapabilities wdCapabilities, boolean lightweight) {
+        Session session = new Session(
+                lightweight ? BrowserType.HTMLUNIT : String.valueOf(wdCapabilities.getBrowserName()),
+                lightweight ? LOCAL_HUB : getHub(wdCapabilities),
+                "implicitlyWait=" + wdCapabilities.getImplicitlyWait()
+                        + ", pageLoadTimeout=" + wdCapabilities.getPageLoadTimeout()
+                        + ", scriptTimeout=" + wdCapabilities.getScriptTimeout()
+                        + " " + wdCapabilities.getTimeUnit()
+        );
+        session.add(1);
+        return session;
+    }
+
+    /*
+    Privates
+     */
+
+    private static String getHub(WDCapabilities wdCapabilities) {
+        if (wdCapabilities.getBrokerPort() > 0)
+            return BROKER_HUB + wdCapabilities.getBrokerPort();
+        return wdCapabilities.isRemote() ? String.valueOf(wdCapabilities.getHubUrl()) : LOCAL_HUB;
+    }
+
+    private static StripedCounter counter(ConcurrentMap<String, StripedCounter> counters, String key) {
+        StripedCounter counter = counters.get(key);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, StripedCounter> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        return snapshot;
+    }
+
+    private static WDServiceStats register(WDServiceStats stats) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(OBJECT_NAME));
+            stats.jmxRegistered = true;
+        } catch (InstanceAlreadyExistsException ignored) {
+            // registered by another class loader of the same JVM
+        } catch (JMException ignored) {
+            // statistics are still available via getInstance(), isJmxRegistered() reports failure
+        }
+        return stats;
+    }
+
+    /**
+     * Active session, which is tracked by statistics.
+     */
+    final class Session {
+        private final String timeouts;
+        private String browser;
+        private String hub;
+        private boolean ended;
+
+        private Session(String browser, String hub, String timeouts) {
+            this.browser = browser;
+            this.hub = hub;
+            this.timeouts = timeouts;
+        }
+
+        /**
+         * Stop tracking of session. Repeated calls are ignored.
+         */
+        synchronized void end() {
+            if (!ended) {
+                ended = true;
+                add(-1);
+            }
+        }
+
+        /**
+         * Move session from lightweight driver to real browser, which it has escalated to.
+         * @param wdCapabilities capabilities of session
+         */
+        synchronized void escalate(WDCapabilities wdCapabilities) {
+            if (ended)
+                return;
+            add(-1);
+            browser = String.valueOf(wdCapabilities.getBrowserName());
+            hub = getHub(wdCapabilities);
+            add(1);
+        }
+
+        private void add(long delta) {
+            counter(activeDrivers, browser).add(delta);
+            counter(sessionsPerHub, hub).add(delta);
+            counter(timeoutsInUse, timeouts).add(delta);
+            MetricsBridge bridge = metricsBridge;
+            if (bridge != null)
+                bridge.count(METRIC_PREFIX + "active." + browser, delta);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.paulakimenko.webdriver.service;
+
+import java.util.Map;
+
+/**
+ * JMX view of WDService statistics.
+ * <p>
+ * Registered as "com.github.paulakimenko.webdriver.service:type=WDServiceStats". Latencies are in milliseconds.
+ */
+public interface WDServiceStatsMXBean {
+    /**
+     * Get active WebDrivers per browser type.
+     * @return map of browser type to count of active WebDrivers
+     */
+    Map<String, Long> getActiveDrivers();
+
+    /**
+     * Get active sessions per hub.
+     * @return map of hub URL ("local" for local WebDrivers) to count of active sessions
+     */
+    Map<String, Long> getSessionsPerHub();
+
+    /**
+     * Get timeout settings in use.
+     * @return map of timeout settings to count of active sessions
+     */
+    Map<String, Long> getTimeoutsInUse();
+
+    /**
+     * Get number of successful WebDriver inits, real browsers launched on escalation included.
+     * @return number of inits
+     */
+    long getInitCount();
+
+    /**
+     * Get number of WebDriver inits, which have failed.
+     * @return number of failed inits
+     */
+    long getFailedInitCount();
+
+    /**
+     * Get number of WebDriver terminations.
+     * @return number of terminations
+     */
+    long getTerminateCount();
+
+    /**
+     * Get median latency of WebDriver init.
+     * @return 50th percentile of init latency in milliseconds
+     */
+    double getInitLatencyP50();
+
+    /**
+     * Get 90th percentile latency of WebDriver init.
+     * @return 90th percentile of init latency in milliseconds
+     */
+    double getInitLatencyP90();
+
+    /**
+     * Get 99th percentile latency of WebDriver init.
+     * @return 99th percentile of init latency in milliseconds
+     */
+    double getInitLatencyP99();
+
+    /**
+     * Get median latency of WebDriver termination.
+     * @return 50th percentile of termination latency in milliseconds
+     */
+    double getTerminateLatencyP50();
+
+    /**
+     * Get 99th percentile latency of WebDriver termination.
+     * @return 99th percentile of termination latency in milliseconds
+     */
+    double getTerminateLatencyP99();
+
+    /**
+     * Get number of WebDrivers, which have been wrapped.
+     * @return number of wraps
+     */
+    long getWrapCount();
+
+    /**
+     * Get maximum depth of wrapper chain.
+     * @return maximum number of wrappers around one WebDriver
+     */
+    int getMaxWrapperChainDepth();
+
+    /**
+     * Get average depth of wrapper chain.
+     * @return average number of wrappers around one wrapped WebDriver
+     */
+    double getAverageWrapperChainDepth();
+
+    /**
+     * Get number of lightweight (HtmlUnitDriver) session inits.
+     * @return number of lightweight inits
+     */
+    long getLightweightInitCount();
+
+    /**
+     * Get number of lightweight sessions, which have escalated to real browser.
+     * @return number of escalations
+     */
+    long getEscalationCount();
+
+    /**
+     * Get ratio of escalated lightweight sessions.
+     * @return escalation rate from 0 to 1
+     */
+    double getEscalationRate();
+
+    /**
+     * Get escalations of lightweight sessions per test, so tests which need real browser could be retagged.
+     * @return map of test name ("unknown" outside of TestNG test) to count of escalations
+     */
+    Map<String, Long> getEscalationsByTest();
+
+    /**
+     * Get escalations of lightweight sessions per reason.
+     * @return map of reason (e.g. "screenshot", "WebDriverException: executeScript") to count of escalations
+     */
+    Map<String, Long> getEscalationsByReason();
+
+    /**
+     * Get number of page readiness waits.
+     * @return number of readiness waits
+     */
+    long getReadinessWaitCount();
+
+    /**
+     * Get number of readiness waits, which have timed out before page became quiet.
+     * @return number of timed out waits
+     */
+    long getReadinessTimeoutCount();
+
+    /**
+     * Get median duration of page readiness wait.
+     * @return 50th percentile of readiness wait in milliseconds
+     */
+    double getReadinessWaitP50();
+
+    /**
+     * Get 99th percentile duration of page readiness wait.
+     * @return 99th percentile of readiness wait in milliseconds
+     */
+    double getReadinessWaitP99();
+
+    /**
+     * Reset counters and latencies. Active sessions are kept.
+     */
+    void reset();
+}
@@ -0,0 +1,368 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.internal.WrapsElement;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Declarative chain of WebDriver wrappers, which is applied on every init(). First added layer wraps the driver,
+ * last added layer is outermost. Chain is immutable and thread-safe, so one chain can be registered for sessions
+ * of all threads with WDServiceProvider.setDefaultWrapperChain().
+ * <p>
+ * Wrapper classes must implement WebDriver and WrapsDriver and have (WebDriver) constructor.
+ * Constructors are resolved once per class into cached method handles.
+ * <p>
+ * Wrapping time is measured per layer. With measureCommands(true) WebDriver and WebElement commands are also
+ * timed at every layer boundary, so self time of each layer is known. Boundary probes are proxies, so wrapper
+ * instances are not visible to casts in this mode; commands of objects returned by manage(), navigate() and
+ * switchTo() are timed as part of the call, which has returned them, only.
+ */
+public final class WrapperChain {
+    private static final MethodType WRAPPER_TYPE = MethodType.methodType(WrapsDriver.class, WebDriver.class);
+    private static final ClassValue<MethodHandle> constructors = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            if (!WebDriver.class.isAssignableFrom(type) || !WrapsDriver.class.isAssignableFrom(type))
+                throw new IllegalArgumentException("Wrapper class is not instance of WebDriver.");
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor(WebDriver.class);
+                constructor.setAccessible(true);
+                return MethodHandles.lookup().unreflectConstructor(constructor).asType(WRAPPER_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException(
+                        "Wrapper class " + type.getName() + " doesn't have (WebDriver) constructor.", e);
+            }
+        }
+    };
+
+    private final List<Layer> layers;
+    private final Layer baseline = new Layer("driver", null);
+    private final boolean measureCommands;
+
+    private WrapperChain(Builder builder) {
+        ImmutableList.Builder<Layer> chainLayers = ImmutableList.builder();
+        for (Map.Entry<String, Function<WebDriver, WrapsDriver>> layer : builder.layers)
+            chainLayers.add(new Layer(layer.getKey(), layer.getValue()));
+        this.layers = chainLayers.build();
+        this.measureCommands = builder.measureCommands;
+    }
+
+    /**
+     * Start building of chain.
+     * @return builder of chain
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Wrap driver with all layers.
+     * <p>
+     * Throws IllegalArgumentException with "transformFunction doesn't produce WebDriver instance".
+     * @param driver WebDriver to wrap
+     * @return outermost wrapper
+     */
+    public WebDriver apply(WebDriver driver) {
+        WebDriver current = measureCommands ? probe(driver, null) : driver;
+        for (Layer layer : layers) {
+            long start = System.nanoTime();
+            WrapsDriver wrapped = layer.transformFunction.apply(current);
+            layer.wraps.increment();
+            layer.wrapNanos.add(System.nanoTime() - start);
+            if (!(wrapped instanceof WebDriver))
+                throw new IllegalArgumentException("transformFunction doesn't produce WebDriver instance");
+            current = measureCommands ? probe((WebDriver) wrapped, layer) : (WebDriver) wrapped;
+        }
+        return current;
+    }
+
+    /**
+     * Get statistics of layers in chain order.
+     * @return statistics of layers
+     */
+    public List<LayerStats> getLayerStats() {
+        List<LayerStats> stats = new ArrayList<>();
+        long innerNanos = baseline.commandNanos.sum();
+        for (Layer layer : layers) {
+            long totalNanos = layer.commandNanos.sum();
+            stats.add(new LayerStats(layer.name, layer.wraps.sum(), layer.wrapNanos.sum(),
+                    layer.commands.sum(), totalNanos, Math.max(0, totalNanos - innerNanos)));
+            innerNanos = totalNanos;
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    /**
+     * Create wrapper with cached constructor.
+     * <p>
+     * Throws IllegalArgumentException if wrapper class has no (WebDriver) constructor,
+     * RuntimeException with "Can't wrap WebDriver with [name]." if constructor has failed.
+     * @param driverWrapperClass WebDriver wrapper class with (WebDriver instance) constructor
+     * @param driver WebDriver to wrap
+     * @return wrapper
+     */
+    static WrapsDriver newWrapper(Class<? extends WrapsDriver> driverWrapperClass, WebDriver driver) {
+        return newWrapper(constructors.get(driverWrapperClass), driverWrapperClass, driver);
+    }
+
+    /*
+    Privates
+     */
+
+    private static WrapsDriver newWrapper(MethodHandle constructor, Class<?> driverWrapperClass, WebDriver driver) {
+        try {
+            return (WrapsDriver) constructor.invokeExact(driver);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Can't wrap WebDriver with " + driverWrapperClass.getName() + ".", e);
+        }
+    }
+
+    private WebDriver probe(WebDriver target, Layer layer) {
+        return (WebDriver) Probe.of(target, layer == null ? baseline : layer, WebDriver.class);
+    }
+
+    /**
+     * Layer of chain with its statistics.
+     */
+    private static final class Layer {
+        private final String name;
+        private final Function<WebDriver, WrapsDriver> transformFunction;
+        private final StripedCounter wraps = new StripedCounter();
+        private final StripedCounter wrapNanos = new StripedCounter();
+        private final StripedCounter commands = new StripedCounter();
+        private final StripedCounter commandNanos = new StripedCounter();
+
+        Layer(String name, Function<WebDriver, WrapsDriver> transformFunction) {
+            this.name = name;
+            this.transformFunction = transformFunction;
+        }
+    }
+
+    /**
+     * Timing proxy at layer boundary: times every command, which enters the layer.
+     * <p>
+     * Elements returned by driver or element are probed at the same boundary. Element probe unwraps to
+     * innermost element, so it can be passed as script argument to any layer.
+     */
+    private static final class Probe implements InvocationHandler {
+        private final Object target;
+        private final Layer layer;
+
+        private Probe(Object target, Layer layer) {
+            this.target = target;
+            this.layer = layer;
+        }
+
+        static Object of(Object target, Layer layer, Class<?>... extraInterfaces) {
+            Set<Class<?>> interfaces = new LinkedHashSet<>();
+            for (Class<?> current = target.getClass(); current != null; current = current.getSuperclass()) {
+                for (Class<?> implemented : current.getInterfaces()) {
+                    if (Modifier.isPublic(implemented.getModifiers()))
+                        interfaces.add(implemented);
+                }
+            }
+            interfaces.addAll(Arrays.asList(extraInterfaces));
+            return Proxy.newProxyInstance(WrapperChain.class.getClassLoader(),
+                    interfaces.toArray(new Class<?>[interfaces.size()]), new Probe(target, layer));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class && "equals".equals(method.getName()))
+                return proxy == args[0] || target.equals(args[0]);
+            if (method.getDeclaringClass() == WrapsElement.class)
+                return unwrap((WebElement) target);
+
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (method.getDeclaringClass() != Object.class) {
+                    layer.commands.increment();
+                    layer.commandNanos.add(System.nanoTime() - start);
+                }
+            }
+            return probeElements(result);
+        }
+
+        private Object probeElements(Object result) {
+            if (result instanceof WebElement)
+                return of(result, layer, WebElement.class, WrapsElement.class);
+            if (!(result instanceof List))
+                return result;
+
+            List<Object> elements = new ArrayList<>(((List<?>) result).size());
+            for (Object element : (List<?>) result) {
+                if (!(element instanceof WebElement))
+                    return result;
+                elements.add(of(element, layer, WebElement.class, WrapsElement.class));
+            }
+            return elements;
+        }
+
+        private static WebElement unwrap(WebElement element) {
+            while (element instanceof WrapsElement)
+                element = ((WrapsElement) element).getWrappedElement();
+            return element;
+        }
+    }
+
+    /**
+     * Builder of WrapperChain.
+     */
+    public static final class Builder {
+        private final List<Map.Entry<String, Function<WebDriver, WrapsDriver>>> layers = new ArrayList<>();
+        private boolean measureCommands;
+
+        private Builder() {}
+
+        /**
+         * Add wrapper class as next (outer) layer.
+         * <p>
+         * Throws IllegalArgumentException with "Wrapper class is not instance of WebDriver." or
+         * "Wrapper class [name] doesn't have (WebDriver) constructor.".
+         * @param driverWrapperClass WebDriver wrapper class with (WebDriver instance) constructor
+         * @param <T> must implement WebDriver, WrapsDriver
+         * @return this builder
+         */
+        public <T extends WrapsDriver> Builder with(final Class<T> driverWrapperClass) {
+            final MethodHandle constructor = constructors.get(driverWrapperClass);
+            return with(driverWrapperClass.getSimpleName(), new Function<WebDriver, WrapsDriver>() {
+                @Override
+                public WrapsDriver apply(WebDriver driver) {
+                    return newWrapper(constructor, driverWrapperClass, driver);
+                }
+            });
+        }
+
+        /**
+         * Add wrapping function as next (outer) layer.
+         * @param name layer name for statistics
+         * @param transformFunction function to wrap driver
+         * @return this builder
+         */
+        public Builder with(String name, Function<WebDriver, WrapsDriver> transformFunction) {
+            layers.add(Maps.immutableEntry(name, transformFunction));
+            return this;
+        }
+
+        /**
+         * Enable timing of WebDriver and WebElement commands at every layer boundary.
+         * @param measureCommands true to time commands
+         * @return this builder
+         */
+        public Builder measureCommands(boolean measureCommands) {
+            this.measureCommands = measureCommands;
+            return this;
+        }
+
+        /**
+         * Build chain with its own statistics.
+         * @return immutable chain
+         */
+        public WrapperChain build() {
+            return new WrapperChain(this);
+        }
+    }
+
+    /**
+     * Statistics of one layer.
+     */
+    public static final class LayerStats {
+        private final String name;
+        private final long wraps;
+        private final long wrapNanos;
+        private final long commands;
+        private final long totalNanos;
+        private final long selfNanos;
+
+        LayerStats(String name, long wraps, long wrapNanos, long commands, long totalNanos, long selfNanos) {
+            this.name = name;
+            this.wraps = wraps;
+            this.wrapNanos = wrapNanos;
+            this.commands = commands;
+            this.totalNanos = totalNanos;
+            this.selfNanos = selfNanos;
+        }
+
+        /**
+         * Get layer name.
+         * @return simple name of wrapper class, or given name of function
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get number of wrapped drivers.
+         * @return number of wraps
+         */
+        public long getWraps() {
+            return wraps;
+        }
+
+        /**
+         * Get time spent in wrapper constructor (function).
+         * @return wrapping time in nanoseconds
+         */
+        public long getWrapNanos() {
+            return wrapNanos;
+        }
+
+        /**
+         * Get number of commands, which have entered the layer (only with measureCommands(true)).
+         * @return number of commands
+         */
+        public long getCommands() {
+            return commands;
+        }
+
+        /**
+         * Get time of commands including inner layers and driver (only with measureCommands(true)).
+         * @return total command time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Get time of commands spent in this layer itself (only with measureCommands(true)).
+         * @return self command time in nanoseconds
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + wraps + " wraps (" + wrapNanos / 1000 + " us), " + commands + " commands, self "
+                    + selfNanos / 1000 + " us of " + totalNanos / 1000 + " us";
+        }
+    }
+}
@@ -1,27 +1,60 @@
 package com.github.paulakimenko.webdriver.service;
 
 import com.google.common.base.Function;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.openqa.selenium.By;
 import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchWindowException;
+import org.openqa.selenium.Platform;
 import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
+import org.openqa.selenium.chrome.ChromeOptions;
 import org.openqa.selenium.firefox.FirefoxDriver;
+import org.openqa.selenium.firefox.FirefoxProfile;
 import org.openqa.selenium.htmlunit.HtmlUnitDriver;
 import org.openqa.selenium.internal.WrapsDriver;
+import org.openqa.selenium.io.FileHandler;
 import org.openqa.selenium.phantomjs.PhantomJSDriver;
 import org.openqa.selenium.remote.BrowserType;
 import org.openqa.selenium.remote.CapabilityType;
 import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.support.events.EventFiringWebDriver;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class WDProviderTests {
     @Test
@@ -103,6 +136,614 @@ public class WDProviderTests {
         assertTrue(service.getDriver() instanceof MockWrapsWebDriverImpl);
     }
 
+    @Test
+    public void namedSessionsTest() {
+        WDServiceProvider.removeInstance();
+        WDService alice = WDServiceProvider.getInstance("alice");
+        WDService bob = WDServiceProvider.getInstance("bob");
+        assertTrue(alice != bob);
+        assertTrue(alice == WDServiceProvider.getInstance("alice"));
+        alice.setCapabilities(DesiredCapabilities.htmlUnit());
+        bob.setCapabilities(DesiredCapabilities.htmlUnit());
+
+        WDServiceProvider.initAll();
+        try {
+            assertEquals(alice.getDriver().getClass(), HtmlUnitDriver.class);
+            assertEquals(bob.getDriver().getClass(), HtmlUnitDriver.class);
+            assertTrue(alice.getDriver() != bob.getDriver());
+        } finally {
+            WDServiceProvider.terminateAll();
+            WDServiceProvider.removeInstance("alice");
+            WDServiceProvider.removeInstance("bob");
+        }
+        assertNull(alice.getDriver());
+        assertNull(bob.getDriver());
+    }
+
+    @Test
+    public void terminateAllGuardedWrappedSessionTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setRemote(true);
+            capabilities.setHubUrl(hub.getUrl());
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+            assertNotNull(ThreadGuardHandler.of(service.getDriver()));
+
+            final AtomicInteger quits = new AtomicInteger();
+            service.wrapWith(new Function<WebDriver, WrapsDriver>() {
+                @Override
+                public WrapsDriver apply(WebDriver input) {
+                    return new MockWrapsWebDriverImpl(input) {
+                        @Override
+                        public void quit() {
+                            quits.incrementAndGet();
+                            super.quit();
+                        }
+                    };
+                }
+            });
+
+            WDServiceProvider.terminateAll();
+            assertEquals(quits.get(), 1);
+            assertNull(service.getDriver());
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void initAllFailureTest() {
+        WDServiceProvider.removeInstance();
+        WDService alice = WDServiceProvider.getInstance("alice");
+        WDService bob = WDServiceProvider.getInstance("bob");
+        alice.setCapabilities(DesiredCapabilities.htmlUnit());
+        bob.setCapabilities(new DesiredCapabilities("unknown", "", Platform.ANY));
+        try {
+            WDServiceProvider.initAll();
+            fail("initAll() should fail for unknown browser.");
+        } catch (RuntimeException e) {
+            assertEquals(e.getMessage(), "Can't initialize session bob.");
+            assertNull(alice.getDriver());
+            assertNull(bob.getDriver());
+        } finally {
+            WDServiceProvider.terminateAll();
+            WDServiceProvider.removeInstance("alice");
+            WDServiceProvider.removeInstance("bob");
+        }
+    }
+
+    @Test
+    public void remoteInitFailureQuitsBrowserTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        hub.failOn("/position");
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setCapability(WDCapabilityType.REMOTE, true);
+            capabilities.setCapability(WDCapabilityType.HUB_URL, hub.getUrl().toString());
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            try {
+                service.init();
+                fail("init() should fail, when window can't be positioned.");
+            } catch (WebDriverException ignored) {}
+            assertNull(service.getDriver());
+            assertEquals(hub.getStartedSessions(), 1);
+            assertEquals(hub.getQuitSessions(), 1);
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void matrixRunnerTest() {
+        WDMatrixRunner runner = new WDMatrixRunner(WDDesiredCapabilities.getDefault())
+                .browsers(BrowserType.HTMLUNIT)
+                .windows(Window.valueOf("default"), Window.valueOf("800x600 on 0x0"))
+                .platforms(Platform.ANY, Platform.LINUX);
+        assertEquals(runner.expand().size(), 4);
+
+        final Set<WebDriver> drivers = Collections.synchronizedSet(new HashSet<WebDriver>());
+        List<WDMatrixRunner.Result> results = runner.threads(2).run(new WDMatrixRunner.Task() {
+            @Override
+            public void run(WDService service) {
+                drivers.add(service.getDriver());
+            }
+        });
+        assertEquals(results.size(), 4);
+        assertEquals(drivers.size(), 4);
+        for (WDMatrixRunner.Result result : results)
+            assertTrue(result.isPassed(), String.valueOf(result));
+    }
+
+    @Test
+    public void serviceStatsTest() throws Exception {
+        WDServiceStats stats = WDServiceStats.getInstance();
+        long initCount = stats.getInitCount();
+        long terminateCount = stats.getTerminateCount();
+        WDService service = WDServiceProvider.getInstance();
+        service.setCapabilities(DesiredCapabilities.htmlUnit());
+        Long htmlUnitDrivers = stats.getActiveDrivers().get(BrowserType.HTMLUNIT);
+        long activeDrivers = htmlUnitDrivers == null ? 0 : htmlUnitDrivers;
+        service.init();
+        assertEquals(stats.getActiveDrivers().get(BrowserType.HTMLUNIT), Long.valueOf(activeDrivers + 1));
+        assertEquals(stats.getInitCount(), initCount + 1);
+        assertTrue(stats.getInitLatencyP99() > 0);
+
+        service.wrapWith(MockWrapsWebDriverImpl.class);
+        assertTrue(stats.getMaxWrapperChainDepth() >= 1);
+        service.terminate();
+        assertEquals(stats.getActiveDrivers().get(BrowserType.HTMLUNIT), Long.valueOf(activeDrivers));
+        assertEquals(stats.getTerminateCount(), terminateCount + 1);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(WDServiceStats.OBJECT_NAME)));
+        assertTrue(stats.isJmxRegistered());
+    }
+
+    @Test
+    public void commandTraceTest() throws Exception {
+        CommandTraceRecorder recorder = new CommandTraceRecorder(Files.createTempDirectory("traces").toFile());
+        WDService service = WDServiceProvider.getInstance();
+        service.setCapabilities(DesiredCapabilities.htmlUnit());
+        service.init();
+        service.wrapWith(recorder);
+        service.getDriver().get("about:blank");
+        service.getDriver().findElements(By.tagName("body"));
+        service.getDriver().manage().timeouts().implicitlyWait(1, TimeUnit.SECONDS);
+        service.terminate();
+        // completed trace is truncated from preallocated capacity to recorded records
+        assertTrue(recorder.getTraceFiles().get(0).length() < 1024);
+
+        CommandTraceReplay replay = new CommandTraceReplay(recorder.getTraceFiles().get(0));
+        assertEquals(replay.getCommands().size(), 6);
+        assertEquals(replay.getCommands().get(0).getSignature(), "org.openqa.selenium.WebDriver#get(java.lang.String)");
+
+        CommandTraceReplay.Report report = replay.replay(CommandTraceReplay.stubDriver());
+        assertEquals(report.getReplayed(), 5);
+        assertEquals(report.getSkipped(), 1);
+        assertEquals(report.getFailed(), 0);
+        assertEquals(replay.replay(CommandTraceReplay.stubDriver(), 2).size(), 2);
+
+        // trace, which is cut right after the first command, is still decodable
+        String signature = "org.openqa.selenium.WebDriver#get(java.lang.String)";
+        int length = CommandTraceRecorder.HEADER_SIZE + 7 + signature.length()
+                + CommandTraceRecorder.COMMAND_RECORD_SIZE;
+        File truncatedTrace = File.createTempFile("trace", CommandTraceRecorder.FILE_EXTENSION);
+        Files.write(truncatedTrace.toPath(),
+                Arrays.copyOf(Files.readAllBytes(recorder.getTraceFiles().get(0).toPath()), length));
+        List<CommandTraceReplay.Command> commands = new CommandTraceReplay(truncatedTrace).getCommands();
+        assertEquals(commands.size(), 1);
+        assertEquals(commands.get(0).getSignature(), signature);
+        truncatedTrace.delete();
+    }
+
+    @Test
+    public void cachingWebDriverTest() throws Exception {
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'>text</div></body></html>".getBytes());
+        final String[] domToken = {"document:0"};
+        final int[] lookups = {0};
+        final int[] tokenChecks = {0};
+        WDService service = WDServiceProvider.getInstance();
+        service.setCustomDriver(new HtmlUnitDriver() {
+            @Override
+            public Object executeScript(String script, Object... args) {
+                if (CachingWebDriver.DOM_TOKEN_SCRIPT.equals(script)) {
+                    tokenChecks[0]++;
+                    return Collections.singletonList(domToken[0]);
+                }
+                return super.executeScript(script, args);
+            }
+
+            @Override
+            public WebElement findElement(By by) {
+                lookups[0]++;
+                return super.findElement(by);
+            }
+        });
+        service.wrapWith(CachingWebDriver.class);
+        CachingWebDriver driver = (CachingWebDriver) service.getDriver();
+        driver.get(page.toURI().toString());
+        assertEquals(driver.findElement(By.id("a")).getText(), "text");
+        assertEquals(driver.findElement(By.id("a")).getText(), "text");
+        assertEquals(lookups[0], 1);
+        assertEquals(tokenChecks[0], 1);
+
+        // token isn't checked again until command, which could mutate DOM
+        domToken[0] = "document:1";
+        driver.findElement(By.id("a")).click();
+        assertEquals(tokenChecks[0], 1);
+        driver.findElement(By.id("a"));
+        assertEquals(tokenChecks[0], 2);
+        assertEquals(lookups[0], 2);
+        assertEquals(driver.getHits(), 2);
+        assertEquals(driver.getLocalHits(), 2);
+        assertEquals(driver.getMisses(), 2);
+        assertEquals(driver.getInvalidations(), 1);
+        page.delete();
+    }
+
+    @Test
+    public void cachingWebDriverDomMutationTest() throws Exception {
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'></div></body></html>".getBytes());
+        // HtmlUnit doesn't support MutationObserver, this page observes appendChild() calls instead
+        File observedPage = File.createTempFile("page", ".html");
+        Files.write(observedPage.toPath(), ("<html><head><script>"
+                + "window.MutationObserver = function (callback) { this.callback = callback; };"
+                + "window.MutationObserver.prototype.observe = function () {"
+                + "  var callback = this.callback, appendChild = Node.prototype.appendChild;"
+                + "  Node.prototype.appendChild = function (child) {"
+                + "    var result = appendChild.call(this, child); callback([]); return result;"
+                + "  };"
+                + "};"
+                + "</script></head><body><div id='a'></div></body></html>").getBytes());
+        String appendScript = "document.getElementById('a').appendChild(document.createElement('span'));";
+        try {
+            HtmlUnitDriver htmlUnitDriver = new HtmlUnitDriver(DesiredCapabilities.firefox());
+            htmlUnitDriver.setJavascriptEnabled(true);
+            WDService service = WDServiceProvider.getInstance();
+            service.setCustomDriver(htmlUnitDriver);
+            service.wrapWith(CachingWebDriver.class);
+            CachingWebDriver driver = (CachingWebDriver) service.getDriver();
+
+            driver.get(page.toURI().toString());
+            assertEquals(driver.findElements(By.tagName("span")).size(), 0);
+            driver.executeScript(appendScript);
+            assertEquals(driver.findElements(By.tagName("span")).size(), 1);
+            assertEquals(driver.getHits(), 0);
+
+            driver.get(observedPage.toURI().toString());
+            driver.executeScript(appendScript);
+            assertEquals(driver.findElements(By.tagName("span")).size(), 1);
+            assertEquals(driver.findElements(By.tagName("span")).size(), 1);
+            assertEquals(driver.getHits(), 1);
+            assertEquals(driver.getLocalHits(), 1);
+            driver.executeScript(appendScript);
+            assertEquals(driver.findElements(By.tagName("span")).size(), 2);
+            assertEquals(driver.findElement(By.id("a")).getTagName(), "div");
+            assertEquals(driver.getHits(), 1);
+            driver.findElement(By.id("a")).click();
+            driver.findElement(By.id("a"));
+            assertEquals(driver.getHits(), 3);
+            assertEquals(driver.getLocalHits(), 2);
+        } finally {
+            page.delete();
+            observedPage.delete();
+        }
+    }
+
+    @Test
+    public void brokerTest() throws Exception {
+        assertEquals(new WDDesiredCapabilities().getBrokerLeaseTimeout(), 600);
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        final WDServiceBroker broker = new WDServiceBroker(0, 1, hub.getUrl());
+        broker.start();
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setBrokerPort(broker.getPort());
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+            assertEquals(broker.getLeased(), 1);
+            assertEquals(broker.getSessions(), 1);
+            assertEquals(hub.getStartedSessions(), 1);
+            assertEquals(((JavascriptExecutor) service.getDriver()).executeScript("return 1;"), null);
+
+            try {
+                WDServiceBroker.lease(broker.getPort(), BrowserType.FIREFOX, 200, TimeUnit.MILLISECONDS).close();
+                fail("Session should not be handed over while the only session is leased.");
+            } catch (IOException ignored) {}
+            for (int i = 0; i < 100 && broker.getWaiting() > 0; i++)
+                Thread.sleep(20);
+            assertEquals(broker.getWaiting(), 0);
+
+            final List<String> handedOver = Collections.synchronizedList(new ArrayList<String>());
+            Thread waitingClient = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (WDServiceBroker.Lease lease =
+                                 WDServiceBroker.lease(broker.getPort(), BrowserType.FIREFOX, 0, TimeUnit.SECONDS)) {
+                        handedOver.add(lease.getSessionId());
+                    } catch (IOException ignored) {}
+                }
+            });
+            waitingClient.start();
+            for (int i = 0; i < 100 && broker.getWaiting() == 0; i++)
+                Thread.sleep(20);
+            assertEquals(broker.getWaiting(), 1);
+
+            // session returns to the pool and is handed over to waiting client
+            service.terminate();
+            waitingClient.join(5000);
+            assertEquals(handedOver.size(), 1);
+            assertEquals(hub.getStartedSessions(), 1);
+            assertEquals(hub.getQuitSessions(), 0);
+            for (int i = 0; i < 100 && broker.getLeased() > 0; i++)
+                Thread.sleep(20);
+            assertEquals(broker.getLeased(), 0);
+            assertEquals(broker.getWaiting(), 0);
+            assertEquals(broker.getIdle(), 1);
+
+            // idle session of other browser is quit to keep the limit
+            WDServiceBroker.lease(broker.getPort(), BrowserType.CHROME, 5, TimeUnit.SECONDS).close();
+            assertEquals(hub.getStartedSessions(), 2);
+            assertEquals(hub.getQuitSessions(), 1);
+            assertEquals(broker.getSessions(), 1);
+        } finally {
+            broker.close();
+            hub.stop();
+        }
+        assertEquals(hub.getQuitSessions(), 2);
+    }
+
+    @Test
+    public void capabilitiesResolverTest() throws Exception {
+        File profile = File.createTempFile("webdriver", ".properties");
+        Files.write(profile.toPath(), (WDCapabilityType.IMPLICITLY_WAIT + "=5\n"
+                + WDCapabilityType.SCRIPT_TIMEOUT + "=7\n").getBytes());
+        System.setProperty(WDCapabilityType.SCRIPT_TIMEOUT, "8");
+        try {
+            WDCapabilitiesResolver resolver = new WDCapabilitiesResolver()
+                    .withOverrides(Collections.singletonMap(CapabilityType.BROWSER_NAME, BrowserType.HTMLUNIT))
+                    .withSystemProperties()
+                    .withProfile(profile);
+            WDCapabilities capabilities = resolver.resolve();
+            assertEquals(capabilities.getBrowserName(), BrowserType.HTMLUNIT);
+            assertEquals(capabilities.getImplicitlyWait(), 5);
+            assertEquals(capabilities.getScriptTimeout(), 8);
+            assertEquals(capabilities.getPageLoadTimeout(), 10);
+            assertTrue(resolver.resolve() == capabilities);
+
+            System.setProperty("unrelated.property", "value");
+            assertTrue(resolver.resolve() == capabilities);
+            System.setProperty(WDCapabilityType.SCRIPT_TIMEOUT, "9");
+            assertEquals(resolver.resolve().getScriptTimeout(), 9);
+            try {
+                ((WDDesiredCapabilities) capabilities).setBrowserName(BrowserType.FIREFOX);
+                fail("Resolved capabilities should be read-only.");
+            } catch (UnsupportedOperationException ignored) {}
+        } finally {
+            System.clearProperty("unrelated.property");
+            System.clearProperty(WDCapabilityType.SCRIPT_TIMEOUT);
+            profile.delete();
+        }
+
+        Map<String, String> environment = new HashMap<>();
+        environment.put("PLATFORM", "WINDOWS");
+        environment.put("VERSION", "1.0");
+        environment.put("WEBDRIVER_BROWSER_NAME", BrowserType.CHROME);
+        environment.put("WEBDRIVER_SERVICE_IMPLICITLY_WAIT", "3");
+        Map<String, String> fromEnvironment = new WDCapabilitiesResolver.EnvironmentLayer(environment).load();
+        assertEquals(fromEnvironment.size(), 2);
+        assertEquals(fromEnvironment.get(CapabilityType.BROWSER_NAME), BrowserType.CHROME);
+        assertEquals(fromEnvironment.get(WDCapabilityType.IMPLICITLY_WAIT), "3");
+    }
+
+    @Test
+    public void capabilitiesResolverResourceTest() throws Exception {
+        File resourceDir = Files.createTempDirectory("resources").toFile();
+        File resource = new File(resourceDir, "webdriver.properties");
+        Files.write(resource.toPath(), (WDCapabilityType.IMPLICITLY_WAIT + "=5\n").getBytes());
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(new URLClassLoader(new URL[] {resourceDir.toURI().toURL()}, null));
+        try {
+            WDCapabilitiesResolver resolver = new WDCapabilitiesResolver().withProfile("webdriver.properties");
+            WDCapabilities capabilities = resolver.resolve();
+            assertEquals(capabilities.getImplicitlyWait(), 5);
+            assertTrue(resolver.resolve() == capabilities);
+
+            Files.write(resource.toPath(), (WDCapabilityType.IMPLICITLY_WAIT + "=6\n").getBytes());
+            assertTrue(resource.setLastModified(resource.lastModified() + 2000));
+            assertEquals(resolver.resolve().getImplicitlyWait(), 6);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+            FileHandler.delete(resourceDir);
+        }
+    }
+
+    @Test(groups = "lightweight")
+    public void lightweightEscalationTest() throws Exception {
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'>text</div></body></html>".getBytes());
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setRemote(true);
+            capabilities.setHubUrl(hub.getUrl());
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            WDServiceStats stats = WDServiceStats.getInstance();
+            long escalations = stats.getEscalationCount();
+            long localSessions = getSessionsPerHub("local");
+            service.init();
+            WebDriver driver = service.getDriver();
+            assertEquals(((WrapsDriver) driver).getWrappedDriver().getClass(), HtmlUnitDriver.class);
+            assertEquals(getSessionsPerHub("local"), localSessions + 1);
+
+            driver.get(page.toURI().toString());
+            assertEquals(driver.findElement(By.id("a")).getText(), "text");
+            service.getJsExecutor().executeScript("return unsupportedFunction();");
+            assertTrue(((WrapsDriver) driver).getWrappedDriver() instanceof RemoteWebDriver);
+            assertEquals(getSessionsPerHub("local"), localSessions);
+            assertEquals(getSessionsPerHub(String.valueOf(hub.getUrl())), 1);
+            assertEquals(hub.getQuitSessions(), 0);
+            assertEquals(stats.getEscalationCount(), escalations + 1);
+            assertTrue(stats.getEscalationsByTest().containsKey(
+                    WDProviderTests.class.getName() + ".lightweightEscalationTest"));
+            service.terminate();
+        } finally {
+            hub.stop();
+            page.delete();
+        }
+    }
+
+    @Test(groups = "lightweight")
+    public void lightweightSessionStateTest() throws Exception {
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'>text</div></body></html>".getBytes());
+        File store = Files.createTempDirectory("states").toFile();
+        try {
+            SessionStateCache.getInstance(store).put("lightweight", new SessionState(page.toURI().toString(),
+                    Collections.<Cookie>emptySet(), Collections.<String, String>emptyMap(),
+                    Collections.<String, String>emptyMap(), System.currentTimeMillis()));
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setSessionStateStore(store);
+            capabilities.setSessionState("lightweight");
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+            WebDriver driver = service.getDriver();
+            assertEquals(((WrapsDriver) driver).getWrappedDriver().getClass(), HtmlUnitDriver.class);
+            assertEquals(driver.findElement(By.id("a")).getText(), "text");
+        } finally {
+            page.delete();
+        }
+    }
+
+    @Test(groups = "lightweight")
+    public void lightweightEscalationFailureTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+        capabilities.setRemote(true);
+        capabilities.setHubUrl(hub.getUrl());
+        hub.stop();
+
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'>text</div></body></html>".getBytes());
+        try {
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+            WebDriver driver = service.getDriver();
+            driver.get(page.toURI().toString());
+            try {
+                service.getJsExecutor().executeScript("return unsupportedFunction();");
+                fail("Escalation should fail without hub.");
+            } catch (WebDriverException ignored) {}
+            assertEquals(((WrapsDriver) driver).getWrappedDriver().getClass(), HtmlUnitDriver.class);
+            assertEquals(driver.findElement(By.id("a")).getText(), "text");
+        } finally {
+            page.delete();
+        }
+    }
+
+    @Test
+    public void waitForReadyTest() throws Exception {
+        assertEquals(new WDDesiredCapabilities().getReadyQuietPeriod(), 500);
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), ("<html><body><div id='a'></div><script>"
+                + "var count = 0;"
+                + "function add() { document.getElementById('a').appendChild(document.createElement('span'));"
+                + "  if (++count < 6) setTimeout(add, 60); }"
+                + "setTimeout(add, 60);"
+                + "</script></body></html>").getBytes());
+        File busyPage = File.createTempFile("page", ".html");
+        Files.write(busyPage.toPath(), ("<html><body><div id='a'></div><script>"
+                + "setInterval(function () { document.getElementById('a').innerHTML = new Date().getTime(); }, 50);"
+                + "</script></body></html>").getBytes());
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setReadyQuietPeriod(200);
+            capabilities.setPageLoadTimeout(1);
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            HtmlUnitDriver driver = new HtmlUnitDriver(DesiredCapabilities.firefox());
+            driver.setJavascriptEnabled(true);
+            service.setCustomDriver(driver);
+
+            driver.get(page.toURI().toString());
+            PageReadiness.Report report = service.waitForReady();
+            assertTrue(report.isReady(), report.toString());
+            assertTrue(report.getMutations() > 0);
+            assertEquals(driver.findElements(By.tagName("span")).size(), 6);
+            assertTrue(report.getWaitMillis() >= 200);
+
+            long timeouts = WDServiceStats.getInstance().getReadinessTimeoutCount();
+            driver.get(busyPage.toURI().toString());
+            report = service.waitForReady();
+            assertTrue(!report.isReady(), report.toString());
+            assertTrue(report.getWaitMillis() >= 1000);
+            assertEquals(WDServiceStats.getInstance().getReadinessTimeoutCount(), timeouts + 1);
+
+            service.setCustomDriver(new HtmlUnitDriver(true) {
+                @Override
+                public Object executeScript(String script, Object... args) {
+                    throw new NoSuchWindowException("Window has been closed.");
+                }
+            });
+            try {
+                service.waitForReady();
+                fail("Closed window should not be awaited until timeout.");
+            } catch (NoSuchWindowException ignored) {}
+        } finally {
+            page.delete();
+            busyPage.delete();
+        }
+    }
+
+    @Test
+    public void wrapperChainTest() throws Exception {
+        WrapperChain.Builder builder = WrapperChain.builder()
+                .with(CachingWebDriver.class)
+                .with(EventFiringWebDriver.class)
+                .measureCommands(true);
+        WrapperChain chain = builder.build();
+        builder.with("ignored", null);
+        WDServiceProvider.setDefaultWrapperChain(chain);
+        File page = File.createTempFile("page", ".html");
+        Files.write(page.toPath(), "<html><body><div id='a'><span>text</span></div></body></html>".getBytes());
+        try {
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(DesiredCapabilities.htmlUnit());
+            service.init();
+            WebDriver driver = service.getDriver();
+            driver.get(page.toURI().toString());
+            driver.getTitle();
+            WebElement element = driver.findElement(By.id("a"));
+            long commands = chain.getLayerStats().get(1).getCommands();
+            assertEquals(element.findElements(By.tagName("span")).get(0).getText(), "text");
+            assertEquals(chain.getLayerStats().get(1).getCommands(), commands + 2);
+            assertEquals(((JavascriptExecutor) driver).executeScript("return arguments[0].id;", element), "a");
+
+            // default chain is applied to every thread
+            final List<WebDriver> otherThreadDrivers = new ArrayList<>();
+            Thread otherThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    WDService otherService = WDServiceProvider.getInstance();
+                    otherService.setCapabilities(DesiredCapabilities.htmlUnit());
+                    otherService.init();
+                    otherThreadDrivers.add(otherService.getDriver());
+                    otherService.terminate();
+                }
+            });
+            otherThread.start();
+            otherThread.join(30000);
+            assertEquals(otherThreadDrivers.size(), 1);
+        } finally {
+            WDServiceProvider.setDefaultWrapperChain(null);
+            page.delete();
+        }
+
+        List<WrapperChain.LayerStats> stats = chain.getLayerStats();
+        assertEquals(stats.size(), 2);
+        assertEquals(stats.get(0).getName(), "CachingWebDriver");
+        assertEquals(stats.get(1).getName(), "EventFiringWebDriver");
+        assertEquals(stats.get(1).getWraps(), 2);
+        assertTrue(stats.get(1).getCommands() >= 2);
+        assertTrue(stats.get(1).getTotalNanos() >= stats.get(0).getTotalNanos());
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class},
+            expectedExceptionsMessageRegExp = ".*doesn't have \\(WebDriver\\) constructor.*")
+    public void wrapperWithoutConstructorTest() {
+        WrapperChain.builder().with(WrapperWithoutConstructor.class);
+    }
+
     @Test
     public void setCustomDriverTest() {
         WDService service = WDServiceProvider.getInstance();
@@ -131,6 +772,206 @@ public class WDProviderTests {
         assertNotNull(service.getDefWebDriverWait());
     }
 
+    @Test
+    public void fastProfileInitTest() {
+        WDDesiredCapabilities capabilities = WDDesiredCapabilities.getFast();
+        capabilities.setCapability(CapabilityType.BROWSER_NAME, BrowserType.HTMLUNIT);
+        WDService service = WDServiceProvider.getInstance();
+        service.setCapabilities(capabilities);
+        service.init();
+        assertTrue(service.getDriver() instanceof EventFiringWebDriver);
+        assertEquals(((WrapsDriver) service.getDriver()).getWrappedDriver().getClass(), HtmlUnitDriver.class);
+    }
+
+    @Test
+    public void performanceProfileTest() {
+        assertEquals(WDDesiredCapabilities.getDefault().getPerformanceProfile(), PerformanceProfile.DEFAULT);
+        assertEquals(WDDesiredCapabilities.getFast().getPerformanceProfile(), PerformanceProfile.FAST);
+        assertEquals(new WDDesiredCapabilities().getPerformanceProfile(), PerformanceProfile.DEFAULT);
+    }
+
+    @Test
+    public void performanceProfileKeepsUserSettingsTest() throws Exception {
+        Map<String, Object> userPreferences = new HashMap<>();
+        userPreferences.put("profile.managed_default_content_settings.images", 1);
+        userPreferences.put("download.default_directory", "/tmp");
+        ChromeOptions options = new ChromeOptions();
+        options.addArguments("--disable-gpu");
+        options.setExperimentalOption("prefs", userPreferences);
+        WDDesiredCapabilities capabilities = WDDesiredCapabilities.getFast();
+        capabilities.setBrowserName(BrowserType.CHROME);
+        capabilities.setCapability(ChromeOptions.CAPABILITY, options);
+
+        ChromeOptions fastOptions = (ChromeOptions) PerformanceProfiles.toBrowserCapabilities(capabilities)
+                .getCapability(ChromeOptions.CAPABILITY);
+        assertTrue(fastOptions != options);
+        assertEquals(userPreferences.size(), 2);
+        Map<?, ?> fastPreferences = (Map<?, ?>) fastOptions.getExperimentalOption("prefs");
+        assertEquals(fastPreferences.get("profile.managed_default_content_settings.images"), 1);
+        assertEquals(fastPreferences.get("profile.managed_default_content_settings.plugins"), 2);
+        assertEquals(fastPreferences.get("download.default_directory"), "/tmp");
+        assertEquals(fastOptions.toJson().getAsJsonObject().get("args").getAsJsonArray().get(0).getAsString(),
+                "--disable-gpu");
+
+        FirefoxProfile profile = new FirefoxProfile();
+        profile.setPreference("permissions.default.image", 1);
+        capabilities.setBrowserName(BrowserType.FIREFOX);
+        capabilities.setCapability(FirefoxDriver.PROFILE, profile);
+        int laidOutProfiles = countLaidOutProfiles();
+        FirefoxProfile fastProfile = (FirefoxProfile) PerformanceProfiles.toBrowserCapabilities(capabilities)
+                .getCapability(FirefoxDriver.PROFILE);
+        assertTrue(fastProfile != profile);
+        assertEquals(countLaidOutProfiles(), laidOutProfiles);
+        assertEquals(profile.getIntegerPreference("browser.display.use_document_fonts", -1), -1);
+        String userJs = new String(Files.readAllBytes(new File(fastProfile.layoutOnDisk(), "user.js").toPath()),
+                StandardCharsets.UTF_8);
+        assertTrue(userJs.contains("user_pref(\"permissions.default.image\", 1);"));
+        assertTrue(userJs.contains("user_pref(\"media.ogg.enabled\", false);"));
+    }
+
+    @Test
+    public void firefoxProfileCacheTest() {
+        FirefoxProfile profile = FirefoxProfileCache.getInstance().getProfile(
+                PerformanceProfiles.getFirefoxPreferences(PerformanceProfile.FAST), Collections.<File>emptyList());
+        assertTrue(profile.containsWebDriverExtension());
+        assertEquals(profile.getIntegerPreference("permissions.default.image", 0), 2);
+        File profileDir = profile.layoutOnDisk();
+        assertTrue(new File(profileDir, "extensions/fxdriver@googlecode.com").isDirectory());
+        profile.clean(profileDir);
+    }
+
+    @Test
+    public void firefoxProfileTemplateEvictedTest() throws Exception {
+        File root = Files.createTempDirectory("profiles").toFile();
+        try {
+            FirefoxProfile profile = new FirefoxProfileCache(root, 1).getProfile(
+                    PerformanceProfiles.getFirefoxPreferences(PerformanceProfile.FAST), Collections.<File>emptyList());
+            // another JVM evicts template before browser starts
+            for (File template : root.listFiles()) {
+                if (template.isDirectory())
+                    FileHandler.delete(template);
+            }
+            File profileDir = profile.layoutOnDisk();
+            File extension = new File(profileDir, "extensions/fxdriver@googlecode.com/install.rdf");
+            assertTrue(extension.isFile());
+            assertEquals(Files.getAttribute(extension.toPath(), "unix:nlink"), 1);
+            profile.clean(profileDir);
+        } finally {
+            FileHandler.delete(root);
+        }
+    }
+
+    @Test
+    public void remoteFastFirefoxProfileTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getFast();
+            capabilities.setRemote(true);
+            capabilities.setHubUrl(hub.getUrl());
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+
+            JsonObject desired = new JsonParser().parse(hub.getLastSessionRequest())
+                    .getAsJsonObject().getAsJsonObject("desiredCapabilities");
+            FirefoxProfile profile = FirefoxProfile.fromJson(desired.get(FirefoxDriver.PROFILE).getAsString());
+            assertEquals(profile.getIntegerPreference("permissions.default.image", 0), 2);
+            service.terminate();
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void sessionStateTest() throws Exception {
+        Set<Cookie> cookies = Collections.singleton(new Cookie("token", "secret", "example.com", "/", null));
+        SessionState state = new SessionState("http://example.com/", cookies,
+                Collections.singletonMap("user", "alice"), Collections.<String, String>emptyMap(),
+                System.currentTimeMillis());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.writeTo(new DataOutputStream(bytes));
+        SessionState readState = SessionState.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(readState.getUrl(), state.getUrl());
+        assertEquals(readState.getCookies(), state.getCookies());
+        assertEquals(readState.getLocalStorage(), state.getLocalStorage());
+        assertEquals(readState.getCapturedAt(), state.getCapturedAt());
+
+        File storeDirectory = Files.createTempDirectory("states").toFile();
+        SessionStateCache cache = SessionStateCache.getInstance(storeDirectory);
+        cache.put("alice", state);
+        assertNotNull(cache.get("alice", 0, TimeUnit.SECONDS));
+        cache.invalidate("alice");
+        assertNull(cache.get("alice", 0, TimeUnit.SECONDS));
+
+        // expiry keeps fresh state, which has been stored by another JVM meanwhile
+        SessionState expiredState = new SessionState("http://example.com/", cookies,
+                Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        cache.put("alice", expiredState);
+        SessionStateCache.getInstance(new File(storeDirectory, ".")).put("alice", state);
+        assertNull(cache.get("alice", 1, TimeUnit.MINUTES));
+        assertEquals(cache.get("alice", 1, TimeUnit.MINUTES).getCapturedAt(), state.getCapturedAt());
+    }
+
+    @Test
+    public void threadGuardModeTest() {
+        assertEquals(WDDesiredCapabilities.getDefault().getThreadGuardMode(), ThreadGuardMode.ON);
+        WDDesiredCapabilities capabilities = new WDDesiredCapabilities();
+        capabilities.setThreadGuardMode(ThreadGuardMode.OFF);
+        assertEquals(capabilities.getThreadGuardMode(), ThreadGuardMode.OFF);
+        assertTrue(ThreadGuardMode.ON.isEnabled());
+        assertTrue(!ThreadGuardMode.OFF.isEnabled());
+    }
+
+    @Test
+    public void threadGuardModeRemoteInitTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        try {
+            WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+            capabilities.setRemote(true);
+            capabilities.setHubUrl(hub.getUrl());
+            capabilities.setThreadGuardMode(ThreadGuardMode.OFF);
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            service.init();
+            assertEquals(service.getDriver().getClass(), RemoteWebDriver.class);
+            service.terminate();
+
+            capabilities.setThreadGuardMode(ThreadGuardMode.DEBUG);
+            service.init();
+            assertEquals(ThreadGuardHandler.of(service.getDriver()) != null,
+                    ThreadGuardMode.class.desiredAssertionStatus());
+            service.terminate();
+        } finally {
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void augmenterCacheTest() throws Exception {
+        WDServiceLoadHarness.StubRemoteEndpoint hub = WDServiceLoadHarness.StubRemoteEndpoint.start();
+        try {
+            final AtomicInteger capabilitiesCalls = new AtomicInteger();
+            RemoteWebDriver driver = new RemoteWebDriver(hub.getUrl(), DesiredCapabilities.htmlUnit()) {
+                @Override
+                public Capabilities getCapabilities() {
+                    capabilitiesCalls.incrementAndGet();
+                    return super.getCapabilities();
+                }
+            };
+            assertTrue(AugmenterCache.augment(driver) == driver);
+
+            // capability set without augmentations is not passed to Augmenter again
+            int calls = capabilitiesCalls.get();
+            assertTrue(AugmenterCache.augment(driver) == driver);
+            assertEquals(capabilitiesCalls.get(), calls + 1);
+            driver.quit();
+        } finally {
+            hub.stop();
+        }
+    }
+
     @Test
     public void windowTest() {
         String paramsInStr = "1400x900 on 10x15";
@@ -171,6 +1012,7 @@ public class WDProviderTests {
             WDService service = WDServiceProvider.getInstance();
             service.terminate();
             service.setCapabilities(null);
+            service.setWrapperChain(null);
             System.clearProperty(CapabilityType.BROWSER_NAME);
         } catch (NullPointerException ignored) {}
     }
@@ -179,6 +1021,26 @@ public class WDProviderTests {
     Privates
      */
 
+    private static long getSessionsPerHub(String hub) {
+        Long sessions = WDServiceStats.getInstance().getSessionsPerHub().get(hub);
+        return sessions == null ? 0 : sessions;
+    }
+
+    private static int countLaidOutProfiles() {
+        int count = 0;
+        for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+            if (name.endsWith("webdriver-profile"))
+                count++;
+        }
+        return count;
+    }
+
+    public static class WrapperWithoutConstructor extends MockWrapsWebDriverImpl {
+        public WrapperWithoutConstructor() {
+            super(null);
+        }
+    }
+
     public static class MockWrapsWebDriverImpl implements WrapsDriver, WebDriver {
         WebDriver wrappedDriver;
 
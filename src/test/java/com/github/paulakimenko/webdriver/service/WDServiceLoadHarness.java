@@ -0,0 +1,353 @@
+package com.github.paulakimenko.webdriver.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openqa.selenium.By;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness of service lifecycle: getInstance(), init(), commands, terminate() from N threads.
+ * <p>
+ * Runs against in-process HtmlUnitDriver ("htmlunit" mode) or against local stub Remote WebDriver endpoint
+ * ("remote" mode), which answers every command immediately, so only service overhead is measured.
+ * Reports throughput, latency percentiles, allocation rate and thread contention.
+ * <p>
+ * Usage: WDServiceLoadHarness [htmlunit|remote] [threads] [sessions per thread] [commands per session]
+ */
+public class WDServiceLoadHarness {
+    private final String mode;
+    private final int threads;
+    private final int sessions;
+    private final int commands;
+
+    public WDServiceLoadHarness(String mode, int threads, int sessions, int commands) {
+        this.mode = mode;
+        this.threads = threads;
+        this.sessions = sessions;
+        this.commands = commands;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "htmlunit";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int commands = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        new WDServiceLoadHarness(mode, threads, sessions, commands).run();
+    }
+
+    public void run() throws Exception {
+        StubRemoteEndpoint endpoint = "remote".equals(mode) ? StubRemoteEndpoint.start() : null;
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported())
+            threadBean.setThreadContentionMonitoringEnabled(true);
+
+        final WDDesiredCapabilities capabilities = WDDesiredCapabilities.getDefault();
+        if (endpoint != null) {
+            capabilities.setRemote(true);
+            capabilities.setHubUrl(endpoint.getUrl());
+        } else {
+            capabilities.setCapability(CapabilityType.BROWSER_NAME, BrowserType.HTMLUNIT);
+        }
+
+        final Worker[] workers = new Worker[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(capabilities, start, done);
+            Thread thread = new Thread(workers[i], "load-harness-" + i);
+            workers[i].thread = thread;
+            thread.start();
+        }
+
+        long startNanos = System.nanoTime();
+        long elapsedNanos;
+        try {
+            start.countDown();
+            done.await();
+            elapsedNanos = System.nanoTime() - startNanos;
+        } finally {
+            if (endpoint != null)
+                endpoint.stop();
+        }
+
+        report(workers, elapsedNanos);
+    }
+
+    /*
+    Privates
+     */
+
+    private void report(Worker[] workers, long elapsedNanos) {
+        List<Long> initLatencies = new ArrayList<>();
+        List<Long> commandLatencies = new ArrayList<>();
+        List<Long> terminateLatencies = new ArrayList<>();
+        long allocatedBytes = 0;
+        long blockedCount = 0;
+        long blockedMillis = 0;
+        long waitedCount = 0;
+        int failures = 0;
+        Throwable firstFailure = null;
+        for (Worker worker : workers) {
+            initLatencies.addAll(worker.initLatencies);
+            commandLatencies.addAll(worker.commandLatencies);
+            terminateLatencies.addAll(worker.terminateLatencies);
+            allocatedBytes += worker.allocatedBytes;
+            blockedCount += worker.blockedCount;
+            blockedMillis += worker.blockedMillis;
+            waitedCount += worker.waitedCount;
+            failures += worker.failures;
+            if (firstFailure == null)
+                firstFailure = worker.firstFailure;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("Mode: " + mode + ", threads: " + threads + ", sessions per thread: " + sessions
+                + ", commands per session: " + commands);
+        System.out.printf("Elapsed: %.2f s, failures: %d%n", seconds, failures);
+        System.out.printf("Throughput: %.1f sessions/s, %.1f commands/s%n",
+                initLatencies.size() / seconds, commandLatencies.size() / seconds);
+        System.out.println("init()      " + percentiles(initLatencies));
+        System.out.println("command     " + percentiles(commandLatencies));
+        System.out.println("terminate() " + percentiles(terminateLatencies));
+        System.out.printf("Allocation: %.1f MB/s (%.1f KB per session)%n",
+                allocatedBytes / seconds / (1024 * 1024),
+                initLatencies.isEmpty() ? 0.0 : allocatedBytes / 1024.0 / initLatencies.size());
+        System.out.printf("Contention: blocked %d times (%d ms), waited %d times%n",
+                blockedCount, blockedMillis, waitedCount);
+        if (firstFailure != null) {
+            System.out.println("First failure:");
+            firstFailure.printStackTrace(System.out);
+        }
+    }
+
+    private static String percentiles(List<Long> latencies) {
+        if (latencies.isEmpty())
+            return "n/a";
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = latencies.get(i);
+        Arrays.sort(sorted);
+        return String.format("p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private class Worker implements Runnable {
+        private final WDCapabilities capabilities;
+        private final CountDownLatch start;
+        private final CountDownLatch done;
+        private final List<Long> initLatencies = new ArrayList<>();
+        private final List<Long> commandLatencies = new ArrayList<>();
+        private final List<Long> terminateLatencies = new ArrayList<>();
+        private Thread thread;
+        private long allocatedBytes;
+        private long blockedCount;
+        private long blockedMillis;
+        private long waitedCount;
+        private int failures;
+        private Throwable firstFailure;
+
+        Worker(WDCapabilities capabilities, CountDownLatch start, CountDownLatch done) {
+            this.capabilities = capabilities;
+            this.start = start;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            try {
+                start.await();
+                long allocatedBefore = allocatedBytes(threadBean);
+                for (int i = 0; i < sessions; i++)
+                    runSession();
+                allocatedBytes = allocatedBytes(threadBean) - allocatedBefore;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                ThreadInfo info = threadBean.getThreadInfo(thread.getId());
+                if (info != null) {
+                    blockedCount = info.getBlockedCount();
+                    blockedMillis = Math.max(0, info.getBlockedTime());
+                    waitedCount = info.getWaitedCount();
+                }
+                WDServiceProvider.removeInstance();
+                done.countDown();
+            }
+        }
+
+        private void runSession() {
+            WDService service = WDServiceProvider.getInstance();
+            service.setCapabilities(capabilities);
+            try {
+                long begin = System.nanoTime();
+                service.init();
+                initLatencies.add(System.nanoTime() - begin);
+
+                WebDriver driver = service.getDriver();
+                for (int i = 0; i < commands; i++) {
+                    begin = System.nanoTime();
+                    if (i % 2 == 0) {
+                        driver.getCurrentUrl();
+                    } else {
+                        driver.findElements(By.tagName("body"));
+                    }
+                    commandLatencies.add(System.nanoTime() - begin);
+                }
+
+                begin = System.nanoTime();
+                service.terminate();
+                terminateLatencies.add(System.nanoTime() - begin);
+            } catch (RuntimeException e) {
+                if (failures++ == 0)
+                    firstFailure = e;
+                if (service.getDriver() != null) {
+                    try {
+                        service.terminate();
+                    } catch (RuntimeException ignored) {
+                        // driver is already counted as failed, session is dropped anyway
+                        service.setCustomDriver(null);
+                    }
+                }
+            }
+        }
+
+        private long allocatedBytes(ThreadMXBean threadBean) {
+            if (threadBean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(thread.getId());
+            return 0;
+        }
+    }
+
+    /**
+     * Local Remote WebDriver endpoint, which answers every JSON wire protocol command immediately.
+     */
+    static class StubRemoteEndpoint implements HttpHandler {
+        private static final String SESSION_PATH = "/wd/hub/session";
+
+        private final HttpServer server;
+        private final ExecutorService executor;
+        private final AtomicInteger startedSessions = new AtomicInteger();
+        private final AtomicInteger quitSessions = new AtomicInteger();
+        private volatile String lastSessionRequest;
+        private volatile String failingPath;
+
+        private StubRemoteEndpoint(HttpServer server, ExecutorService executor) {
+            this.server = server;
+            this.executor = executor;
+        }
+
+        static StubRemoteEndpoint start() throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            StubRemoteEndpoint endpoint = new StubRemoteEndpoint(server, Executors.newCachedThreadPool());
+            server.createContext("/wd/hub", endpoint);
+            server.setExecutor(endpoint.executor);
+            server.start();
+            return endpoint;
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/wd/hub");
+        }
+
+        /**
+         * Get body of the last new session request.
+         */
+        String getLastSessionRequest() {
+            return lastSessionRequest;
+        }
+
+        /**
+         * Get number of started sessions.
+         */
+        int getStartedSessions() {
+            return startedSessions.get();
+        }
+
+        /**
+         * Get number of quit sessions.
+         */
+        int getQuitSessions() {
+            return quitSessions.get();
+        }
+
+        /**
+         * Answer commands, which path ends with given suffix, with unknown error.
+         */
+        void failOn(String pathSuffix) {
+            failingPath = pathSuffix;
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            try (InputStream input = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = input.read(buffer)) != -1)
+                    request.write(buffer, 0, read);
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            String response;
+            if (failingPath != null && path.endsWith(failingPath)) {
+                response = "{\"status\":13,\"value\":{\"message\":\"stub failure\"}}";
+            } else if ("POST".equals(exchange.getRequestMethod()) && SESSION_PATH.equals(path)) {
+                lastSessionRequest = new String(request.toByteArray(), StandardCharsets.UTF_8);
+                startedSessions.incrementAndGet();
+                response = "{\"sessionId\":\"" + UUID.randomUUID() + "\",\"status\":0,"
+                        + "\"value\":{\"browserName\":\"stub\",\"javascriptEnabled\":true}}";
+            } else if (path.startsWith(SESSION_PATH + "/") && path.lastIndexOf('/') == SESSION_PATH.length()) {
+                if ("DELETE".equals(exchange.getRequestMethod()))
+                    quitSessions.incrementAndGet();
+                response = "{\"status\":0,\"value\":{\"browserName\":\"stub\",\"javascriptEnabled\":true}}";
+            } else if (path.endsWith("/url") && "GET".equals(exchange.getRequestMethod())) {
+                response = "{\"status\":0,\"value\":\"about:blank\"}";
+            } else if (path.endsWith("/elements")) {
+                response = "{\"status\":0,\"value\":[]}";
+            } else {
+                response = "{\"status\":0,\"value\":null}";
+            }
+
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.getResponseHeaders().set("Connection", "close");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+}